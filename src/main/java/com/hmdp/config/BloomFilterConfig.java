@@ -0,0 +1,36 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * 店铺、优惠券id的布隆过滤器
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-17 15:30
+ */
+
+@Configuration
+public class BloomFilterConfig {
+
+    @Bean
+    public RedisBloomFilter shopBloomFilter(CacheProperties cacheProperties, StringRedisTemplate stringRedisTemplate,
+                                            RedisMessageListenerContainer listenerContainer) {
+        CacheProperties.Bloom bloom = cacheProperties.getBloom();
+        return new RedisBloomFilter(RedisConstants.BLOOM_SHOP_KEY, bloom.getExpectedInsertions(), bloom.getFpp(),
+                stringRedisTemplate, listenerContainer);
+    }
+
+    @Bean
+    public RedisBloomFilter voucherBloomFilter(CacheProperties cacheProperties, StringRedisTemplate stringRedisTemplate,
+                                               RedisMessageListenerContainer listenerContainer) {
+        CacheProperties.Bloom bloom = cacheProperties.getBloom();
+        return new RedisBloomFilter(RedisConstants.BLOOM_VOUCHER_KEY, bloom.getExpectedInsertions(), bloom.getFpp(),
+                stringRedisTemplate, listenerContainer);
+    }
+}
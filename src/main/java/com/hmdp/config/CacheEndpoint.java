@@ -0,0 +1,31 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheMetrics;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * actuator端点: /actuator/cache, 展示缓存指标的汇总
+ * 单个指标也可以通过/actuator/metrics/cache.requests等查看
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-26 11:00
+ */
+
+@Component
+@Endpoint(id = "cache")
+public class CacheEndpoint {
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @ReadOperation
+    public Map<String, Object> cache() {
+        return cacheMetrics.snapshot();
+    }
+}
@@ -0,0 +1,284 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 缓存相关配置, 对应application.yaml中的hmdp.cache
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-15 10:20
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 进程内一级缓存(L1)
+     */
+    private Local local = new Local();
+
+    /**
+     * 缓存重建时的请求合并
+     */
+    private SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 防止缓存穿透的布隆过滤器
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * key前缀 -> 编解码方式(json、binary), 没有配置的前缀使用json
+     */
+    private Map<String, String> codecs = new HashMap<>();
+
+    /**
+     * key前缀 -> 提前刷新策略的参数, 没有配置的前缀使用默认值
+     */
+    private Map<String, RefreshAhead> refreshAhead = new HashMap<>();
+
+    /**
+     * key前缀 -> 过期时间的随机增量, 物理过期和逻辑过期都生效, 没有配置的前缀不随机
+     */
+    private Map<String, TtlJitter> ttlJitter = new HashMap<>();
+
+    /**
+     * key前缀 -> 压缩参数, 没有配置的前缀不压缩
+     */
+    private Map<String, Compression> compression = new HashMap<>();
+
+    /**
+     * 进程内的负缓存
+     */
+    private Negative negative = new Negative();
+
+    /**
+     * 热点key探测
+     */
+    private HotKey hotKey = new HotKey();
+
+    /**
+     * 缓存预热
+     */
+    private Warmup warmup = new Warmup();
+
+    /**
+     * 缓存失效发件箱
+     */
+    private Outbox outbox = new Outbox();
+
+    /**
+     * 后台重建缓存的线程池
+     */
+    private Rebuild rebuild = new Rebuild();
+
+    @Data
+    public static class Local {
+        /**
+         * 是否开启一级缓存
+         */
+        private boolean enabled = true;
+        /**
+         * 最多缓存的条目数, 超出后按LRU淘汰
+         */
+        private int capacity = 10000;
+        /**
+         * 条目在本地的存活时间
+         */
+        private Duration ttl = Duration.ofSeconds(30);
+        /**
+         * 开启一级缓存的key前缀, 例如cache:shop:
+         */
+        private List<String> prefixes = new ArrayList<>();
+    }
+
+    @Data
+    public static class SingleFlight {
+        /**
+         * 等待重建结果的最长时间, 超时后返回旧值
+         */
+        private Duration timeout = Duration.ofMillis(500);
+        /**
+         * 兜底旧值最多保留的条目数
+         */
+        private int staleCapacity = 10000;
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 每个过滤器预计的元素个数
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 期望的误判率
+         */
+        private double fpp = 0.01;
+        /**
+         * 定期全量重建的cron表达式
+         */
+        private String rebuildCron = "0 0 4 * * ?";
+        /**
+         * 每批从数据库读取的id个数
+         */
+        private int batchSize = 1000;
+    }
+
+    @Data
+    public static class RefreshAhead {
+        public static final RefreshAhead DEFAULT = new RefreshAhead();
+
+        /**
+         * 越大越早刷新, 1.0是XFetch论文中的推荐值
+         */
+        private double beta = 1.0;
+        /**
+         * 重建耗时的下限(毫秒), 避免耗时太短时永远不会提前刷新
+         */
+        private long minCost = 10;
+    }
+
+    @Data
+    public static class TtlJitter {
+        /**
+         * 按比例随机, 0.1表示在ttl的基础上增加[0, 10%)
+         */
+        private double percent = 0;
+        /**
+         * 按固定窗口随机, 与percent同时配置时取较大的一个
+         */
+        private Duration window = Duration.ZERO;
+    }
+
+    @Data
+    public static class Compression {
+        /**
+         * 编码后达到该大小才压缩, 小的值压缩收益不够抵消CPU开销
+         */
+        private DataSize threshold = DataSize.ofKilobytes(4);
+        /**
+         * deflate压缩级别, 1优先速度, 9优先压缩率
+         */
+        private int level = 1;
+    }
+
+    @Data
+    public static class Negative {
+        private boolean enabled = true;
+        /**
+         * 开启负缓存的key前缀, id必须是数字
+         */
+        private List<String> prefixes = new ArrayList<>();
+        /**
+         * 每个前缀最多记录的id个数
+         */
+        private int capacity = 100000;
+        /**
+         * 第一次记录时的存活时间, 之后每被查询一次翻倍
+         */
+        private Duration baseTtl = Duration.ofSeconds(30);
+        /**
+         * 存活时间的上限, 超过redis中空值的存活时间(CACHE_NULL_TTL)时按空值的存活时间算
+         */
+        private Duration maxTtl = Duration.ofMinutes(2);
+    }
+
+    @Data
+    public static class HotKey {
+        private boolean enabled = true;
+        /**
+         * 每个时间片的长度(毫秒)
+         */
+        private long windowMillis = 1000;
+        /**
+         * 滑动窗口包含的时间片个数
+         */
+        private int windows = 10;
+        /**
+         * Count-Min Sketch的行数和列数
+         */
+        private int depth = 4;
+        private int width = 4096;
+        /**
+         * 滑动窗口内访问次数达到该值即为热点
+         */
+        private long threshold = 1000;
+        /**
+         * 访问次数降到threshold * demoteRatio以下时取消热点
+         */
+        private double demoteRatio = 0.5;
+        /**
+         * 热点key本地副本的存活时间和最大条目数
+         */
+        private Duration replicaTtl = Duration.ofSeconds(2);
+        private int replicaCapacity = 1000;
+    }
+
+    @Data
+    public static class Warmup {
+        /**
+         * 启动时是否自动预热所有注册的数据源
+         */
+        private boolean onStartup = false;
+        /**
+         * 每批序列化并写入redis的条数
+         */
+        private int batchSize = 500;
+        /**
+         * 同时序列化写入的批数
+         */
+        private int parallelism = 4;
+        /**
+         * 每秒最多写入的条数, 避免预热占满redis影响线上请求, 0表示不限制
+         */
+        private int maxRowsPerSecond = 5000;
+    }
+
+    @Data
+    public static class Outbox {
+        /**
+         * 后台任务每次处理的记录数
+         */
+        private int batchSize = 200;
+        /**
+         * 第一次删除之后, 间隔多久再删除一次, 清理并发读请求回填的旧数据
+         */
+        private Duration secondDeleteDelay = Duration.ofSeconds(1);
+        /**
+         * 删除失败后重试的间隔上限, 每次失败间隔翻倍
+         */
+        private Duration maxRetryInterval = Duration.ofMinutes(1);
+        /**
+         * 提交后更新缓存的兜底删除: 更新成功前节点宕机时, 间隔多久由后台任务删除缓存
+         */
+        private Duration fallbackDelay = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class Rebuild {
+        /**
+         * 重建线程数
+         */
+        private int threads = 10;
+        /**
+         * 等待重建的任务上限, 超出后直接返回旧值, 不再排队
+         */
+        private int queueCapacity = 1000;
+        /**
+         * 关闭时等待已提交任务完成的最长时间
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+    }
+}
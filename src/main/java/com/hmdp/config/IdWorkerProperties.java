@@ -0,0 +1,34 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 全局id生成器的配置, 对应application.yaml中的hmdp.id-worker
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-02 09:10
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id-worker")
+public class IdWorkerProperties {
+
+    /**
+     * 节点号, 0 ~ 63; 小于0时启动时从redis自增分配
+     */
+    private int nodeId = -1;
+
+    /**
+     * 每次从redis预留的序列号个数, 越大访问redis越少, 节点重启时浪费的序列号越多
+     */
+    private int blockSize = 1000;
+
+    /**
+     * 当前号段剩余该比例时在后台预取下一个号段
+     */
+    private double prefetchRatio = 0.2;
+}
@@ -0,0 +1,62 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 限流配置, 对应application.yaml中的hmdp.rate-limit
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-07 09:30
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = true;
+
+    /**
+     * 读取客户端ip的请求头, 例如X-Real-IP, 只有在可信的反向代理后面才配置; 为空时使用连接的地址
+     */
+    private String ipHeader = "";
+
+    /**
+     * 本地的令牌桶状态闲置超过该时间后清除, 没用完的令牌一起丢弃
+     */
+    private Duration idleTimeout = Duration.ofMinutes(1);
+
+    /**
+     * 访问redis失败后不限流的时间, 这段时间内请求不再访问redis
+     */
+    private Duration failOpen = Duration.ofSeconds(1);
+
+    /**
+     * 规则名 -> 限流参数; "规则名:key" 可以单独配置某个key, 例如 seckill-voucher:10
+     * 没有配置的规则不限流
+     */
+    private Map<String, Rule> rules = new HashMap<>();
+
+    @Data
+    public static class Rule {
+        /**
+         * 每秒生成的令牌数
+         */
+        private double rate = 100;
+        /**
+         * 桶的容量, 允许的突发请求数
+         */
+        private long capacity = 100;
+        /**
+         * 每个节点一次从redis取出的令牌数, 越大访问redis越少, 节点之间越不均匀; 按用户、ip限流时一般为1
+         */
+        private int batch = 1;
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 秒杀相关配置, 对应application.yaml中的hmdp.seckill
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-29 10:10
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    public enum Mode {
+        /**
+         * 每次下单都查询数据库, 加锁后在事务中扣减库存并创建订单
+         */
+        DB,
+        /**
+         * 在redis中用lua脚本判断库存和一人一单, 订单写入stream, 由消费者组批量写入数据库
+         */
+        REDIS
+    }
+
+    private Mode mode = Mode.REDIS;
+
+    /**
+     * 订单异步落库
+     */
+    private Persist persist = new Persist();
+
+    /**
+     * 分段库存
+     */
+    private Segment segment = new Segment();
+
+    /**
+     * 进程内的售罄标记
+     */
+    private SoldOut soldOut = new SoldOut();
+
+    @Data
+    public static class Persist {
+        /**
+         * 消费者组名称, 所有节点共用一个组, 每条订单只会被一个消费者处理
+         */
+        private String group = "order-persister";
+        /**
+         * 每个节点的消费者线程数
+         */
+        private int threads = 2;
+        /**
+         * 每次XREADGROUP读取的订单数, 也是一个事务写入的订单数
+         */
+        private int batchSize = 200;
+        /**
+         * 没有新订单时XREADGROUP阻塞等待的时间
+         */
+        private Duration block = Duration.ofSeconds(2);
+        /**
+         * 恢复任务的执行间隔(毫秒)
+         */
+        private long recoverMillis = 5000;
+        /**
+         * pending列表中的订单超过该时间没有确认, 认为消费者已经宕机, 由恢复任务认领重试
+         */
+        private Duration claimIdle = Duration.ofSeconds(30);
+        /**
+         * 最多投递次数, 超出后转入死信stream, 不再重试
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 关闭时等待消费者线程处理完当前批次的最长时间
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Segment {
+        /**
+         * 是否把每张秒杀券的库存拆成多个分段, 分散热点券对单个redis分片的压力
+         */
+        private boolean enabled = false;
+        /**
+         * 分段数, 一般不少于redis集群的主节点数; 修改后需要重新加载库存
+         */
+        private int buckets = 4;
+        /**
+         * 再平衡检查的间隔(毫秒)
+         */
+        private long rebalanceMillis = 1000;
+        /**
+         * 最多和最少的分段相差超过平均值的该比例时再平衡
+         */
+        private double rebalanceRatio = 0.5;
+    }
+
+    @Data
+    public static class SoldOut {
+        /**
+         * 是否在本地记录售罄的秒杀券, 售罄后的请求不再访问redis和数据库
+         */
+        private boolean enabled = true;
+        /**
+         * 与redis中的售罄标记对账的间隔(毫秒), 兜底错过的广播
+         */
+        private long reconcileMillis = 5000;
+    }
+}
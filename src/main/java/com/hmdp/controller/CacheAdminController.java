@@ -0,0 +1,120 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.WarmupProgress;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存运维接口
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-23 14:20
+ */
+
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private IShopService shopService;
+
+    /**
+     * 按key前缀和查询策略统计的命中率、数据库耗时、互斥锁等待等指标
+     */
+    @GetMapping("/metrics")
+    public Result queryMetrics() {
+        return Result.ok(cacheMetrics.snapshot());
+    }
+
+    /**
+     * 当前本节点探测到的热点key及其滑动窗口内的访问次数
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 各个key前缀提前刷新策略的计数
+     */
+    @GetMapping("/refresh-ahead")
+    public Result queryRefreshAheadStats() {
+        return Result.ok(cacheClient.getRefreshAheadStats());
+    }
+
+    /**
+     * key前缀的过期时间分布, 例如 /admin/cache/expiry?prefix=cache:shop:&bucket=60
+     */
+    @GetMapping("/expiry")
+    public Result queryExpiryHistogram(
+            @RequestParam("prefix") String prefix,
+            @RequestParam(value = "limit", defaultValue = "10000") Integer limit,
+            @RequestParam(value = "bucket", defaultValue = "60") Long bucketSeconds) {
+        if (bucketSeconds < 1) {
+            return Result.fail("桶的宽度不能小于1秒");
+        }
+        return Result.ok(cacheClient.expiryHistogram(prefix, limit, bucketSeconds));
+    }
+
+    /**
+     * 对比店铺在json模式和哈希模式下的内存占用, 以及列表卡片每次读取的字节数
+     * 累计的每次请求字节数见/metrics中batch和hash策略的bytesPerHit
+     */
+    @GetMapping("/compare/shop/{id}")
+    public Result compareShopStorage(@PathVariable("id") Long id) {
+        return shopService.compareCacheStorage(id);
+    }
+
+    /**
+     * 预热所有注册的数据源
+     */
+    @PostMapping("/warmup")
+    public Result warmUpAll() {
+        return Result.ok(cacheWarmer.startAll());
+    }
+
+    /**
+     * 预热指定的数据源, 例如shop
+     */
+    @PostMapping("/warmup/{name}")
+    public Result warmUp(@PathVariable("name") String name) {
+        WarmupProgress progress = cacheWarmer.start(name);
+        if (progress == null) {
+            return Result.fail("预热数据源不存在");
+        }
+        return Result.ok(progress);
+    }
+
+    /**
+     * 各数据源最近一次预热的进度
+     */
+    @GetMapping("/warmup")
+    public Result queryWarmupProgress() {
+        return Result.ok(cacheWarmer.progresses());
+    }
+}
@@ -11,6 +11,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.RateLimit;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
@@ -52,6 +53,8 @@ public class UserController {
      * 发送手机验证码
      */
     @PostMapping("code")
+    @RateLimit(value = "send-code-ip", scope = RateLimit.Scope.IP)
+    @RateLimit(value = "send-code-phone", key = "#phone")
     public Result sendCode(@RequestParam("phone") String phone, HttpSession session) {
         // 1. 校验手机号
         if(RegexUtils.isPhoneInvalid(phone)){
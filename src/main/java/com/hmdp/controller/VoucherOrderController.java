@@ -5,6 +5,7 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.RateLimit;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,6 +27,8 @@ public class VoucherOrderController {
      * @return
      */
     @PostMapping("seckill/{id}")
+    @RateLimit(value = "seckill-user", scope = RateLimit.Scope.USER)
+    @RateLimit(value = "seckill-voucher", key = "#voucherId")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
@@ -0,0 +1,65 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 缓存失效的发件箱, 与业务数据在同一个事务中写入
+ * </p>
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-25 09:30
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_outbox")
+public class CacheOutbox implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int PHASE_FIRST_DELETE = 0;
+    public static final int PHASE_SECOND_DELETE = 1;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 需要删除的缓存key
+     */
+    private String cacheKey;
+
+    /**
+     * 0,等待第一次删除; 1,等待延迟的第二次删除
+     */
+    private Integer phase;
+
+    /**
+     * 删除失败的次数
+     */
+    private Integer retryCount;
+
+    /**
+     * 下次处理的时间
+     */
+    private LocalDateTime nextRetryTime;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+
+
+}
@@ -0,0 +1,17 @@
+package com.hmdp.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.CacheOutbox;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-25 09:30
+ */
+public interface CacheOutboxMapper extends BaseMapper<CacheOutbox> {
+
+}
@@ -0,0 +1,34 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.CacheOutbox;
+
+import java.util.function.LongConsumer;
+
+/**
+ * <p>
+ *  缓存失效发件箱
+ * </p>
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-25 09:40
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务中记录需要删除的缓存key, 事务提交后删除缓存, 失败的由后台任务重试
+     */
+    void record(String... keys);
+
+    /**
+     * 在当前事务中记录一个兜底删除, 事务提交后执行update更新缓存, 参数是记录的id, 可以作为更新的版本号
+     * update成功后撤销记录; update失败时立即删除缓存; 提交后节点宕机时由后台任务在fallbackDelay之后删除
+     */
+    void recordFallback(String key, LongConsumer update);
+
+    /**
+     * 处理到期的发件箱记录
+     */
+    void dispatch();
+}
@@ -2,6 +2,7 @@ package com.hmdp.service;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.utils.SeckillVoucherMeta;
 
 /**
  * <p>
@@ -13,4 +14,14 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 从内存中查询秒杀券的元数据, 不在内存中时查询数据库
+     * @return 秒杀券不存在时返回null
+     */
+    SeckillVoucherMeta getMeta(Long voucherId);
+
+    /**
+     * 当前事务提交后, 通知所有节点加载这张秒杀券的元数据
+     */
+    void refreshMetaAfterCommit(Long voucherId);
 }
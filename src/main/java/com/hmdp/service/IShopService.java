@@ -16,7 +16,13 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result queryShopByType(Integer typeId, Integer current);
+
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
 
+    Result compareCacheStorage(Long id);
+
     public void saveShop2Redis(Long id, Long expireSeconds);
 }
@@ -1,7 +1,9 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.utils.JsonSnapshot;
 
 /**
  * <p>
@@ -13,4 +15,14 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IShopTypeService extends IService<ShopType> {
 
+    /**
+     * 按sort排序的店铺类型列表, 已经序列化为Result的json
+     */
+    JsonSnapshot queryTypeListSnapshot();
+
+    Result saveShopType(ShopType shopType);
+
+    Result updateShopType(ShopType shopType);
+
+    Result deleteShopType(Long id);
 }
@@ -0,0 +1,207 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  缓存失效发件箱: 业务事务中写入记录, 提交后删除缓存, 间隔一段时间后再删除一次
+ *  两次删除都成功后才删除记录, 失败的记录按指数退避重试
+ * </p>
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-25 10:00
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * 提交后的回调中业务事务已经结束, 推进记录状态的语句需要在新的事务中执行
+     */
+    private TransactionTemplate requiresNew;
+
+    @PostConstruct
+    private void init() {
+        requiresNew = new TransactionTemplate(transactionManager);
+        requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @Override
+    public void record(String... keys) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("cache outbox must be recorded inside a transaction");
+        }
+        // 1. 与业务数据在同一个事务中写入
+        LocalDateTime now = LocalDateTime.now();
+        List<CacheOutbox> records = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            records.add(new CacheOutbox()
+                    .setCacheKey(key)
+                    .setPhase(CacheOutbox.PHASE_FIRST_DELETE)
+                    .setRetryCount(0)
+                    .setNextRetryTime(now));
+        }
+        saveBatch(records);
+        // 2. 事务提交后立即做第一次删除, 失败的留给后台任务
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    // 回调时连接还绑定在已经提交的事务上, 不开新事务时这里的update和delete不保证提交
+                    requiresNew.executeWithoutResult(status -> process(records));
+                } catch (Exception e) {
+                    log.warn("提交后删除缓存失败, 等待后台重试: {}", records.size(), e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void recordFallback(String key, LongConsumer update) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("cache outbox must be recorded inside a transaction");
+        }
+        // 1. 与业务数据在同一个事务中写入, 推迟到fallbackDelay之后才由后台任务处理
+        CacheOutbox record = new CacheOutbox()
+                .setCacheKey(key)
+                .setPhase(CacheOutbox.PHASE_FIRST_DELETE)
+                .setRetryCount(0)
+                .setNextRetryTime(LocalDateTime.now().plus(cacheProperties.getOutbox().getFallbackDelay()));
+        save(record);
+        // 2. 事务提交后更新缓存, 成功则撤销记录, 失败则立即删除
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    update.accept(record.getId());
+                } catch (Exception e) {
+                    log.warn("提交后更新缓存失败, 删除缓存: {}", key, e);
+                    try {
+                        requiresNew.executeWithoutResult(status -> process(Collections.singletonList(record)));
+                    } catch (Exception ex) {
+                        log.warn("删除缓存失败, 等待后台重试: {}", key, ex);
+                    }
+                    return;
+                }
+                try {
+                    requiresNew.executeWithoutResult(status -> removeById(record.getId()));
+                } catch (Exception e) {
+                    // 记录留下时到期后删除一次缓存, 只是多一次未命中
+                    log.warn("撤销兜底删除失败: {}", key, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.poll-millis:1000}")
+    public void dispatch() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_OUTBOX_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            List<CacheOutbox> due;
+            do {
+                due = query()
+                        .le("next_retry_time", LocalDateTime.now())
+                        .orderByAsc("id")
+                        .last("limit " + cacheProperties.getOutbox().getBatchSize())
+                        .list();
+                process(due);
+            } while (due.size() == cacheProperties.getOutbox().getBatchSize());
+        } catch (Exception e) {
+            log.error("处理缓存失效发件箱失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 批量删除缓存并推进记录的状态
+     */
+    private void process(List<CacheOutbox> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        Set<String> keys = records.stream().map(CacheOutbox::getCacheKey).collect(Collectors.toCollection(LinkedHashSet::new));
+        try {
+            cacheClient.deleteBatch(keys);
+        } catch (Exception e) {
+            log.warn("删除缓存失败, 稍后重试: {}", keys, e);
+            retryLater(records);
+            return;
+        }
+        Map<Integer, List<Long>> idsByPhase = records.stream().collect(Collectors.groupingBy(
+                CacheOutbox::getPhase, Collectors.mapping(CacheOutbox::getId, Collectors.toList())));
+        // 1. 第一次删除完成, 延迟一段时间后再删除一次
+        List<Long> first = idsByPhase.get(CacheOutbox.PHASE_FIRST_DELETE);
+        if (first != null) {
+            update()
+                    .set("phase", CacheOutbox.PHASE_SECOND_DELETE)
+                    .set("next_retry_time", LocalDateTime.now().plus(cacheProperties.getOutbox().getSecondDeleteDelay()))
+                    .in("id", first)
+                    .eq("phase", CacheOutbox.PHASE_FIRST_DELETE)
+                    .update();
+        }
+        // 2. 第二次删除完成, 记录处理结束
+        List<Long> second = idsByPhase.get(CacheOutbox.PHASE_SECOND_DELETE);
+        if (second != null) {
+            removeByIds(second);
+        }
+    }
+
+    private void retryLater(List<CacheOutbox> records) {
+        long maxMillis = cacheProperties.getOutbox().getMaxRetryInterval().toMillis();
+        for (CacheOutbox record : records) {
+            int retryCount = record.getRetryCount() + 1;
+            long interval = Math.min(maxMillis, 1000L << Math.min(retryCount, 20));
+            update()
+                    .set("retry_count", retryCount)
+                    .set("next_retry_time", LocalDateTime.now().plusNanos(interval * 1_000_000))
+                    .eq("id", record.getId())
+                    .update();
+        }
+    }
+}
@@ -4,17 +4,167 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillVoucherMeta;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
+ * 秒杀券的元数据保存在内存中的不可变map, 新增秒杀券时复制一份再替换
+ * redis中保存版本号, 新增秒杀券提交后递增版本号并广播, 各节点收到后只加载这一张; 版本号不连续时全量加载
  * </p>
  *
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    private volatile Map<Long, SeckillVoucherMeta> metas = Collections.emptyMap();
+
+    private long version;
+
+    /**
+     * 数据库中不存在的秒杀券id -> 过期时间, 过期之前不再查询数据库
+     */
+    private final Map<Long, Long> misses = new ConcurrentHashMap<>();
+
+    private static final long MISS_TTL_MILLIS = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL);
+
+    @PostConstruct
+    private void initMetas() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|");
+            apply(Long.parseLong(parts[0]), Long.valueOf(parts[1]));
+        }, new ChannelTopic(RedisConstants.SECKILL_VOUCHER_CHANNEL));
+        reload(currentVersion());
+    }
+
+    @Override
+    public SeckillVoucherMeta getMeta(Long voucherId) {
+        SeckillVoucherMeta meta = metas.get(voucherId);
+        if (meta != null) {
+            return meta;
+        }
+        // 不存在的秒杀券在过期之前直接返回
+        Long expireAt = misses.get(voucherId);
+        if (expireAt != null && expireAt > System.currentTimeMillis()) {
+            return null;
+        }
+        // 启动时只加载没有结束的秒杀券, 已经结束的第一次查询时从数据库加载
+        return load(voucherId);
+    }
+
+    @Override
+    public void refreshMetaAfterCommit(Long voucherId) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                Long version = stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_VOUCHER_VERSION_KEY);
+                apply(version, voucherId);
+                stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_VOUCHER_CHANNEL, version + "|" + voucherId);
+            }
+        });
+    }
+
+    /**
+     * 兜底: 错过广播时按redis中的版本号重新加载
+     */
+    @Scheduled(fixedDelay = 30000)
+    public void checkVersion() {
+        long now = System.currentTimeMillis();
+        misses.values().removeIf(expireAt -> expireAt <= now);
+        long current = currentVersion();
+        synchronized (this) {
+            if (current == version) {
+                return;
+            }
+        }
+        reload(current);
+    }
+
+    /**
+     * 版本号连续时只加载变化的秒杀券, 否则全量加载
+     */
+    private synchronized void apply(long newVersion, Long voucherId) {
+        if (newVersion <= version) {
+            return;
+        }
+        if (newVersion != version + 1) {
+            reload(newVersion);
+            return;
+        }
+        load(voucherId);
+        version = newVersion;
+    }
+
+    /**
+     * 从数据库加载没有结束的秒杀券, 生成新的map
+     */
+    private synchronized void reload(long newVersion) {
+        List<SeckillVoucher> vouchers = query().gt("end_time", LocalDateTime.now()).list();
+        Map<Long, SeckillVoucherMeta> loaded = new HashMap<>(vouchers.size() * 2);
+        for (SeckillVoucher voucher : vouchers) {
+            loaded.put(voucher.getVoucherId(), new SeckillVoucherMeta(voucher));
+        }
+        metas = Collections.unmodifiableMap(loaded);
+        misses.clear();
+        version = newVersion;
+        log.debug("秒杀券元数据已更新, 版本: {}, 秒杀券个数: {}", newVersion, loaded.size());
+    }
+
+    /**
+     * 从数据库加载一张秒杀券, 查询数据库时不加锁, 不存在时记录一段时间
+     */
+    private SeckillVoucherMeta load(Long voucherId) {
+        SeckillVoucher voucher = getById(voucherId);
+        if (voucher == null) {
+            misses.put(voucherId, System.currentTimeMillis() + MISS_TTL_MILLIS);
+            return null;
+        }
+        SeckillVoucherMeta meta = new SeckillVoucherMeta(voucher);
+        put(meta);
+        return meta;
+    }
+
+    /**
+     * 复制map后加入, 只在替换map时加锁, 避免并发的加入互相覆盖
+     */
+    private synchronized void put(SeckillVoucherMeta meta) {
+        Map<Long, SeckillVoucherMeta> copy = new HashMap<>(metas);
+        copy.put(meta.getVoucherId(), meta);
+        metas = Collections.unmodifiableMap(copy);
+        misses.remove(meta.getVoucherId());
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_VOUCHER_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
 }
@@ -6,24 +6,47 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import cn.hutool.log.Log;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.WarmupProgress;
+import org.apache.ibatis.cursor.Cursor;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -36,10 +59,86 @@ import java.util.concurrent.TimeUnit;
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
+    /**
+     * 店铺列表卡片展示的字段, 哈希模式下只读取这些field
+     * 地址、坐标、营业时间等只在详情页展示, 由 /shop/{id} 读取完整的店铺
+     */
+    private static final String[] SHOP_CARD_FIELDS = {"id", "name", "images", "area", "avgPrice", "comments", "score"};
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, shopBloomFilter);
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_HASH_KEY, shopBloomFilter);
+        // 其他节点已经构建过则直接加载, 否则从数据库构建
+        if (!shopBloomFilter.loadFromRedis()) {
+            rebuildBloomFilter();
+        }
+    }
+
+    @PostConstruct
+    private void registerWarmup() {
+        cacheWarmer.register("shop", this::warmUpShopCache);
+    }
+
+    /**
+     * 在只读事务中用游标遍历所有店铺, 写入与queryById相同格式、带过期时间的缓存
+     */
+    private void warmUpShopCache(WarmupProgress progress) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setReadOnly(true);
+        template.executeWithoutResult(status -> {
+            try (Cursor<Shop> cursor = getBaseMapper().scanAll()) {
+                cacheWarmer.write(progress, cursor, shop -> RedisConstants.CACHE_SHOP_KEY + shop.getId(),
+                        RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * 定期全量重建布隆过滤器, 清理已删除的店铺, 同一时刻只有一个节点执行
+     */
+    @Scheduled(cron = "${hmdp.cache.bloom.rebuild-cron}")
+    public void rebuildBloomFilter() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_BLOOM_KEY + "shop");
+        if (!lock.tryLock()) {
+            // 其他节点正在重建, 完成后广播重新加载, 在此之前本地过滤器放行所有id
+            return;
+        }
+        try {
+            int batchSize = cacheProperties.getBloom().getBatchSize();
+            shopBloomFilter.rebuild(lastId -> listObjs(new QueryWrapper<Shop>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("limit " + batchSize),
+                    id -> ((Number) id).longValue()));
+        } finally {
+            lock.unlock();
+        }
+    }
 
     /**
      * 逻辑过期解决缓存穿透问题
@@ -88,52 +187,51 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //    }
 
     /**
-     * 互斥锁解决缓存穿透问题
+     * 提前刷新解决缓存击穿问题: 热点店铺在过期之前由后台刷新, 读请求看不到未命中, 热点店铺会先命中CacheClient的一级缓存
+     * 刷新参数见 hmdp.cache.refresh-ahead, 预热写入的条目带有相同格式的过期时间
      * @param id
      * @return
      */
     public Result queryById(Long id) {
-        // 1. 从redis中查询商铺缓存
-        String shopStr = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        // 2. 判断是否存在, isNotBlank可以判断：null, ""等，只有“xxx"才会返回true
-        if(StrUtil.isNotBlank(shopStr)){
-            // 3. 存在， 返回
-            Shop shop = JSONUtil.toBean(shopStr, Shop.class);
-            return Result.ok(shop);
-        }
-        // 4. 判断的是否命中的为空
-        if(shopStr != null){
-            return Result.fail("查询店铺不存在");
+        Shop shop = cacheClient.queryWithRefreshAhead(
+                RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        if (shop == null) {
+            return Result.fail("店铺不存在");
         }
+        return Result.ok(shop);
+    }
 
-        Shop shop = null;
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        try {
-            // 5. 尝试获取互斥锁
-            Boolean lock = tryLock(lockKey);
-            // 6. 没有获得互斥锁
-            if(BooleanUtil.isFalse(lock)){
-                Thread.sleep(200);
-                return queryById(id); // 递归调用
-            }
-            // 7. 成功，根据id查询数据库
-            shop = getById(id);
-            // 8. 数据库不存在, 在Redis中添加空
-            if (shop == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "",RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return Result.fail("店铺不存在");
-            }
-            // 9. 存在，则存入redis中
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 10. 释放锁
-            unLock(lockKey);
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+        // 1. 根据类型分页查询店铺id
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
         }
-        // 11. 返回
-        return Result.ok(shop);
+        // 2. 列表只需要卡片字段, 从哈希模式的缓存中投影读取, 未命中的一次查询数据库
+        Map<Long, Shop> shops = cacheClient.queryHashProjection(RedisConstants.CACHE_SHOP_HASH_KEY, ids, Shop.class,
+                SHOP_CARD_FIELDS, this::queryShopMap, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
+
+    private Map<Long, Shop> queryShopMap(Collection<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1. 写入数据库
+        save(shop);
+        // 2. 提交后再加入布隆过滤器, 保证重建时不会漏掉
+        shopBloomFilter.put(shop.getId());
+        // 3. 删除可能存在的空值, 同时通知所有节点清除负缓存中的这个id
+        cacheClient.deleteBatch(Arrays.asList(
+                RedisConstants.CACHE_SHOP_KEY + shop.getId(), RedisConstants.CACHE_SHOP_HASH_KEY + shop.getId()));
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -145,14 +243,36 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
 
         // 1. 更新数据库
-        save(shop);
+        updateById(shop);
 
-        // 2. 删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 2. 在同一个事务中记录缓存失效, 提交后删除json缓存并通知所有节点清除一级缓存
+        cacheOutboxService.record(RedisConstants.CACHE_SHOP_KEY + id);
+
+        // 3. 哈希模式的缓存只覆盖本次修改的字段, 例如只修改sold、score时不重写整个条目
+        //    发件箱记录的id作为版本号: 同一店铺的更新被行锁串行化, 后提交的记录id更大, 乱序的回调不会用旧值覆盖新值
+        //    更新失败或提交后节点宕机时由发件箱删除整个key; 与并发回填交错时可能短暂保留旧字段, 由过期时间兜底
+        Map<String, Object> changed = BeanUtil.beanToMap(shop, false, true);
+        changed.remove("id");
+        String hashKey = RedisConstants.CACHE_SHOP_HASH_KEY + id;
+        cacheOutboxService.recordFallback(hashKey, version -> cacheClient.updateHashFields(hashKey, version, changed));
 
         return Result.ok();
     }
 
+    @Override
+    public Result compareCacheStorage(Long id) {
+        // 1. 确保两种模式的缓存都已写入
+        Result shop = queryById(id);
+        if (!Boolean.TRUE.equals(shop.getSuccess())) {
+            return shop;
+        }
+        cacheClient.queryHashProjection(RedisConstants.CACHE_SHOP_HASH_KEY, Collections.singletonList(id), Shop.class,
+                SHOP_CARD_FIELDS, this::queryShopMap, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 2. 对比内存占用和列表卡片每次读取的字节数
+        return Result.ok(cacheClient.compareStorage(RedisConstants.CACHE_SHOP_KEY + id,
+                RedisConstants.CACHE_SHOP_HASH_KEY + id, SHOP_CARD_FIELDS));
+    }
+
     public Boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -165,11 +285,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public void saveShop2Redis(Long id, Long expireSeconds){
         // 1. 查询店铺数据
         Shop shop = getById(id);
-        // 2. 封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3. 写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2. 封装逻辑过期时间并写入redis
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 }
@@ -1,20 +1,141 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.JsonSnapshot;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * <p>
  *  服务实现类
+ *  店铺类型列表几乎不变, 在内存中保存序列化好的快照
+ *  redis中保存版本号, 写操作提交后递增版本号并广播, 各节点收到后重新加载
  * </p>
  *
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    private volatile JsonSnapshot snapshot;
+
+    @PostConstruct
+    private void initSnapshot() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            long version = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (version > snapshot.getVersion()) {
+                reload(version);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_SHOP_TYPE_CHANNEL));
+        reload(currentVersion());
+    }
+
+    @Override
+    public JsonSnapshot queryTypeListSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 兜底: 错过广播时按redis中的版本号重新加载
+     */
+    @Scheduled(fixedDelay = 30000)
+    public void checkVersion() {
+        long version = currentVersion();
+        if (version != snapshot.getVersion()) {
+            reload(version);
+        }
+    }
+
+    @Override
+    @Transactional
+    public Result saveShopType(ShopType shopType) {
+        if (StrUtil.isBlank(shopType.getName())) {
+            return Result.fail("类型名称不能为空");
+        }
+        save(shopType);
+        bumpVersionAfterCommit();
+        return Result.ok(shopType.getId());
+    }
+
+    @Override
+    @Transactional
+    public Result updateShopType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("类型Id不能为Null");
+        }
+        if (!updateById(shopType)) {
+            return Result.fail("类型不存在");
+        }
+        bumpVersionAfterCommit();
+        return Result.ok();
+    }
+
+    @Override
+    @Transactional
+    public Result deleteShopType(Long id) {
+        if (!removeById(id)) {
+            return Result.fail("类型不存在");
+        }
+        bumpVersionAfterCommit();
+        return Result.ok();
+    }
+
+    /**
+     * 查询数据库并生成新的快照
+     */
+    private synchronized void reload(long version) {
+        List<ShopType> typeList = query().orderByAsc("sort").list();
+        try {
+            snapshot = new JsonSnapshot(version, objectMapper.writeValueAsBytes(Result.ok(typeList)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        log.debug("店铺类型快照已更新, 版本: {}, 类型个数: {}", version, typeList.size());
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    private void bumpVersionAfterCommit() {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                Long version = stringRedisTemplate.opsForValue().increment(RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY);
+                stringRedisTemplate.convertAndSend(RedisConstants.CACHE_SHOP_TYPE_CHANNEL, String.valueOf(version));
+            }
+        });
+    }
 }
@@ -1,5 +1,8 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -7,19 +10,61 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillMetrics;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SeckillVoucherMeta;
+import com.hmdp.utils.SoldOutMarker;
+import com.hmdp.utils.StripedLock;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -29,6 +74,7 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -44,25 +90,130 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private RedisBloomFilter voucherBloomFilter;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    /**
+     * 数据库模式下的本地用户锁
+     */
+    private final StripedLock userLocks = new StripedLock(USER_LOCK_STRIPES);
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    /**
+     * 本地用户锁的个数, 不随用户数增长
+     */
+    private static final int USER_LOCK_STRIPES = 1024;
+
+    /**
+     * 本节点消费者名称的前缀, 重启后是新的消费者, 旧消费者未确认的订单由恢复任务认领
+     */
+    private static final String CONSUMER_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    private ExecutorService orderConsumers;
+
+    private TransactionTemplate transactionTemplate;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    private void init() {
+        if (seckillProperties.getMode() != SeckillProperties.Mode.REDIS) {
+            return;
+        }
+        // 1. 加载进行中的秒杀券库存, 其他节点已经加载过的不覆盖; 写入了库存时清除之前的售罄标记
+        List<SeckillVoucher> vouchers = seckillVoucherService.query().gt("end_time", LocalDateTime.now()).list();
+        for (SeckillVoucher voucher : vouchers) {
+            if (seckillStock.load(voucher.getVoucherId(), voucher.getStock(), false)) {
+                soldOutMarker.clear(voucher.getVoucherId());
+            }
+        }
+        // 2. 为每个订单stream创建消费者组, stream不存在时一起创建
+        SeckillProperties.Persist persist = seckillProperties.getPersist();
+        List<String> streams = seckillStock.streams();
+        for (String stream : streams) {
+            createGroupIfAbsent(stream, persist.getGroup());
+        }
+        // 3. 每个stream启动threads个消费者线程; 集群模式下不同分段的stream不在同一个槽, 不能一次XREADGROUP读取
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        running = true;
+        AtomicInteger threadId = new AtomicInteger();
+        orderConsumers = Executors.newFixedThreadPool(persist.getThreads() * streams.size(), r -> {
+            Thread thread = new Thread(r, "seckill-order-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (String stream : streams) {
+            for (int i = 0; i < persist.getThreads(); i++) {
+                String consumer = CONSUMER_PREFIX + i;
+                orderConsumers.execute(() -> consumeOrders(stream, consumer));
+            }
+        }
+    }
+
+    /**
+     * 停止读取新订单, 等待消费者处理完当前批次; 没有确认的订单留在pending列表中, 由其他节点认领
+     */
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        if (orderConsumers == null) {
+            return;
+        }
+        running = false;
+        orderConsumers.shutdown();
+        long timeout = seckillProperties.getPersist().getShutdownTimeout().toMillis();
+        if (!orderConsumers.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+            log.warn("订单消费者没有在{}ms内退出", timeout);
+        }
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
-       // 1. 查询特价卷信息
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        // 0. 布隆过滤器拦截不存在的优惠券
+        if(!voucherBloomFilter.mightContain(voucherId)){
+            return Result.fail("优惠券不存在");
+        }
+        // 0.1 已经售罄的券只查本地标记
+        if (soldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        long epoch = soldOutMarker.epoch(voucherId);
+
+       // 1. 查询特价卷信息, 元数据在内存中
+        SeckillVoucherMeta voucher = seckillVoucherService.getMeta(voucherId);
+        if(voucher == null){
+            return Result.fail("优惠券不存在");
+        }
 
         // 2. 判断秒杀是否开始
-        if(LocalDateTime.now().isBefore(voucher.getBeginTime())){
+        long now = System.currentTimeMillis();
+        if(voucher.notStarted(now)){
             return Result.fail("秒杀活动未开始");
         }
 
-        if(LocalDateTime.now().isAfter(voucher.getEndTime())){
+        if(voucher.ended(now)){
             return Result.fail("秒杀活动已经结束");
         }
 
-        // 3. 判断库存是否充足
-        if(voucher.getStock() < 0){
-            return Result.fail("库存不足");
+        if (seckillProperties.getMode() == SeckillProperties.Mode.REDIS) {
+            return seckillVoucherInRedis(voucherId, epoch);
         }
 
+        // 3. 库存由createVoucherOrder中的 stock > 0 条件判断, 元数据中的库存不是实时的
+
         Long userId = UserHolder.getUser().getId();
 
         /**
@@ -81,25 +232,290 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // boolean tryLock(), 默认时间为1s, 30s过期
         // boolean tryLock(long time, TimeUnit unit)
         // boolean tryLock(long var1, long var3, TimeUnit var5)
-        boolean isLock = lock.tryLock();
+
+        /**
+         * 本地的分段锁只在获取redisson锁期间持有, 同一节点同一用户的并发请求依次去redis尝试, 不会同时打到redis
+         * 代替 synchronized (userId.toString().intern()), 不会往字符串常量池里放每个用户的id
+         * 不同用户落在同一个分段时最多等待一次获取锁的时间, 不会等待数据库事务, 也不会被误判为重复下单
+         */
+        Lock localLock = userLocks.get(userId);
+        boolean isLock;
+        localLock.lock();
+        try {
+            isLock = lock.tryLock();
+        } finally {
+            localLock.unlock();
+        }
 
         if(!isLock){
             return Result.fail("不允许重复下单");
         }
 
-        synchronized (userId.toString().intern()){
+        try {
             // 获取代理对象
             IVoucherOrderService proxy = (IVoucherOrderService)AopContext.currentProxy();
             return proxy.createVoucherOrder(voucherId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * lua脚本在redis中原子地判断库存和一人一单并扣减库存, 订单交给后台线程批量写入数据库
+     * 调用之前已经在内存中判断过秒杀时间
+     */
+    private Result seckillVoucherInRedis(Long voucherId, long epoch) {
+        // 1. 执行lua脚本, 0: 成功, 1: 库存不足, 2: 重复下单, 4: 库存没有加载; 成功时订单已经写入stream
+        Long userId = UserHolder.getUser().getId();
+        long orderId = redisIdWorker.nextId("order");
+        long result = seckillStock.admit(voucherId, userId, orderId);
+        if (result == SeckillStock.REPEAT) {
+            return Result.fail("不能重复下单");
+        }
+        if (result == SeckillStock.MISSING) {
+            // 1.1 redis重启或key被淘汰, 直接拒绝, 不从数据库加载:
+            //     数据库的库存没有扣减stream中还没落库的订单, 已下单用户的set也丢了, 加载后会超卖和重复下单
+            //     需要等订单全部落库后由管理员重新写入库存
+            seckillMetrics.stockMissing();
+            return Result.fail("库存未就绪, 请稍后再试");
+        }
+        if (result != SeckillStock.OK) {
+            // 1.2 分段模式下可能只是库存正在移动, 确认所有分段的库存之和不大于0才标记售罄
+            Integer remaining = seckillStock.remaining(Collections.singletonList(voucherId)).get(voucherId);
+            if (remaining != null && remaining <= 0) {
+                soldOutMarker.markSoldOut(voucherId, epoch);
+            }
+            return Result.fail("库存不足");
         }
 
+        // 2. 直接返回订单id, 由消费者组异步写入数据库
+        return Result.ok(orderId);
+    }
+
+    /**
+     * 消费者线程: XREADGROUP读取新订单, 批量写入数据库后XACK
+     */
+    private void consumeOrders(String stream, String consumer) {
+        SeckillProperties.Persist persist = seckillProperties.getPersist();
+        StreamReadOptions options = StreamReadOptions.empty().count(persist.getBatchSize()).block(persist.getBlock());
+        StreamOffset<String> offset = StreamOffset.create(stream, ReadOffset.lastConsumed());
+        while (running) {
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .read(Consumer.from(persist.getGroup(), consumer), options, offset);
+                if (records == null || records.isEmpty()) {
+                    continue;
+                }
+                List<RecordId> ids = new ArrayList<>(records.size());
+                List<VoucherOrder> orders = new ArrayList<>(records.size());
+                for (MapRecord<String, Object, Object> record : records) {
+                    ids.add(record.getId());
+                    orders.add(toVoucherOrder(record.getId(), record.getValue()));
+                }
+                saveOrders(stream, ids, orders);
+            } catch (RuntimeException e) {
+                // redis或数据库暂时不可用, 稍后重试, 已读取未确认的订单留在pending列表中
+                log.error("订单消费者{}处理{}失败", consumer, stream, e);
+                sleepQuietly(persist.getBlock().toMillis());
+            }
+        }
+    }
+
+    /**
+     * 恢复任务: 认领pending列表中长时间没有确认的订单重新写入, 超过投递次数的转入死信stream
+     * 同时采样落库的延迟
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.persist.recover-millis:5000}")
+    public void recoverPendingOrders() {
+        if (!running) {
+            return;
+        }
+        long pending = 0;
+        long lag = 0;
+        for (String stream : seckillStock.streams()) {
+            try {
+                recoverPendingOrders(stream);
+                long[] sample = sampleLag(stream);
+                pending += sample[0];
+                lag = Math.max(lag, sample[1]);
+            } catch (RuntimeException e) {
+                log.error("恢复{}中未确认的订单失败", stream, e);
+            }
+        }
+        seckillMetrics.lag(pending, lag);
+    }
+
+    private void recoverPendingOrders(String stream) {
+        SeckillProperties.Persist persist = seckillProperties.getPersist();
+        String group = persist.getGroup();
+        // 1. 找出空闲时间超过阈值的订单
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(
+                stream, group, Range.unbounded(), persist.getBatchSize());
+        List<RecordId> idle = new ArrayList<>();
+        for (PendingMessage message : pendingMessages) {
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(persist.getClaimIdle()) < 0) {
+                continue;
+            }
+            if (message.getTotalDeliveryCount() >= persist.getMaxDeliveries()) {
+                deadLetter(stream, group, message.getId());
+            } else {
+                idle.add(message.getId());
+            }
+        }
+        if (idle.isEmpty()) {
+            return;
+        }
+        // 2. XCLAIM只会认领空闲时间仍然超过阈值的订单, 多个节点同时执行时只有一个能认领成功
+        String consumer = CONSUMER_PREFIX + "recover";
+        byte[] key = stream.getBytes(StandardCharsets.UTF_8);
+        RedisStreamCommands.XClaimOptions claimOptions = RedisStreamCommands.XClaimOptions
+                .minIdle(persist.getClaimIdle()).ids(idle.toArray(new RecordId[0]));
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(key, group, consumer, claimOptions));
+        if (claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        seckillMetrics.claimed(claimed.size());
+        log.warn("认领了{}中{}个超时未确认的订单", stream, claimed.size());
+        List<RecordId> ids = new ArrayList<>(claimed.size());
+        List<VoucherOrder> orders = new ArrayList<>(claimed.size());
+        for (ByteRecord record : claimed) {
+            MapRecord<String, String, String> decoded = record.deserialize(RedisSerializer.string());
+            ids.add(decoded.getId());
+            orders.add(toVoucherOrder(decoded.getId(), decoded.getValue()));
+        }
+        saveOrders(stream, ids, orders);
+    }
+
+    /**
+     * 落库延迟: pending列表中最早的订单距今的时间, 与还没有投递的订单落后的时间, 取较大的一个
+     * @return pending的订单数和延迟毫秒数
+     */
+    private long[] sampleLag(String stream) {
+        String group = seckillProperties.getPersist().getGroup();
+        long now = System.currentTimeMillis();
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, group);
+        long lag = 0;
+        long pending = summary == null ? 0 : summary.getTotalPendingMessages();
+        if (pending > 0 && summary.minRecordId() != null) {
+            lag = now - summary.minRecordId().getTimestamp();
+        }
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup g = groups.get(i);
+            if (group.equals(g.groupName()) && info.lastGeneratedId() != null && g.lastDeliveredId() != null) {
+                long generated = RecordId.of(info.lastGeneratedId()).getTimestamp();
+                long delivered = RecordId.of(g.lastDeliveredId()).getTimestamp();
+                lag = Math.max(lag, generated - delivered);
+            }
+        }
+        return new long[]{pending, Math.max(lag, 0)};
+    }
+
+    /**
+     * 多次投递仍然失败的订单写入死信stream并确认, 需要人工处理
+     */
+    private void deadLetter(String stream, String group, RecordId id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(stream, Range.closed(id.getValue(), id.getValue()));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = new HashMap<>(records.get(0).getValue());
+            value.put("source", stream);
+            value.put("sourceId", id.getValue());
+            stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DEAD_STREAM, value);
+        }
+        stringRedisTemplate.opsForStream().acknowledge(stream, group, id);
+        seckillMetrics.deadLetter();
+        log.error("{}中的订单{}超过最大投递次数, 已转入死信stream", stream, id);
+    }
+
+    /**
+     * 在一个事务中批量扣减库存并写入订单, 成功后确认; 失败后逐条重试, 避免一条订单拖累整批
+     * 重复投递的订单写入时主键冲突, 说明已经落库, 直接确认; 其他失败的订单留在pending列表中等待恢复
+     */
+    private void saveOrders(String stream, List<RecordId> ids, List<VoucherOrder> orders) {
+        List<RecordId> done;
+        try {
+            transactionTemplate.executeWithoutResult(status -> insertOrders(orders));
+            done = ids;
+        } catch (RuntimeException e) {
+            log.error("批量写入{}个订单失败, 逐条重试", orders.size(), e);
+            done = new ArrayList<>(ids.size());
+            for (int i = 0; i < orders.size(); i++) {
+                VoucherOrder order = orders.get(i);
+                try {
+                    transactionTemplate.executeWithoutResult(status -> insertOrders(Collections.singletonList(order)));
+                    done.add(ids.get(i));
+                } catch (DuplicateKeyException ex) {
+                    seckillMetrics.duplicate();
+                    done.add(ids.get(i));
+                } catch (RuntimeException ex) {
+                    seckillMetrics.failed();
+                    log.error("写入订单失败: {}", order, ex);
+                }
+            }
+        }
+        if (!done.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(stream,
+                    seckillProperties.getPersist().getGroup(), done.toArray(new RecordId[0]));
+            seckillMetrics.persisted(done.size());
+        }
+    }
+
+    private void insertOrders(List<VoucherOrder> orders) {
+        // 1. 同一张券的订单合并为一条update扣减库存
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count).update();
+            if (!success) {
+                throw new IllegalStateException("数据库库存不足, voucherId: " + voucherId + ", 扣减数量: " + count);
+            }
+        });
+        // 2. 批量写入订单
+        saveBatch(orders);
+    }
+
+    /**
+     * stream中的一条消息转换为订单, 下单时间取消息id中的时间戳
+     */
+    private VoucherOrder toVoucherOrder(RecordId id, Map<?, ?> value) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+        voucherOrder.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(id.getTimestamp()), ZoneId.systemDefault()));
+        return voucherOrder;
+    }
+
+    private void createGroupIfAbsent(String stream, String group) {
+        byte[] key = stream.getBytes(StandardCharsets.UTF_8);
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.streamCommands().xGroupCreate(key, group, ReadOffset.from("0"), true));
+        } catch (RuntimeException e) {
+            // 其他节点已经创建过
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Transactional
-    public synchronized Result createVoucherOrder(Long voucherId){
+    public Result createVoucherOrder(Long voucherId){
         // 4. 一人一单逻辑
         // 4.1 用户id
         Long userId = UserHolder.getUser().getId();
+        long epoch = soldOutMarker.epoch(voucherId);
         Integer count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
         // 4.2 判断是否存在
         if(count > 0){
@@ -114,6 +530,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .gt("stock", 0).update(); // where id = ? and stock > 0
 
         if(!success){
+            soldOutMarker.markSoldOut(voucherId, epoch);
             return Result.fail("库存不足");
         }
 
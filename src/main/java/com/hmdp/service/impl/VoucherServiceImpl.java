@@ -1,17 +1,36 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SoldOutMarker;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -27,14 +46,104 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private RedisBloomFilter voucherBloomFilter;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SoldOutMarker soldOutMarker;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        // 其他节点已经构建过则直接加载, 否则从数据库构建
+        if (!voucherBloomFilter.loadFromRedis()) {
+            rebuildBloomFilter();
+        }
+    }
+
+    /**
+     * 定期全量重建布隆过滤器, 同一时刻只有一个节点执行
+     */
+    @Scheduled(cron = "${hmdp.cache.bloom.rebuild-cron}")
+    public void rebuildBloomFilter() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_BLOOM_KEY + "voucher");
+        if (!lock.tryLock()) {
+            // 其他节点正在重建, 完成后广播重新加载, 在此之前本地过滤器放行所有id
+            return;
+        }
+        try {
+            int batchSize = cacheProperties.getBloom().getBatchSize();
+            voucherBloomFilter.rebuild(lastId -> listObjs(new QueryWrapper<Voucher>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("limit " + batchSize),
+                    id -> ((Number) id).longValue()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1. 查询缓存的优惠券定义, 未命中时查询数据库
+        Voucher[] cached = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_VOUCHER_KEY, shopId, Voucher[].class,
+                id -> getBaseMapper().queryVoucherOfShop(id).toArray(new Voucher[0]),
+                RedisConstants.CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES);
+        if (cached == null || cached.length == 0) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 2. 复制一份, 缓存中的对象是共享的, 不能修改
+        List<Voucher> vouchers = new ArrayList<>(cached.length);
+        List<Long> seckillIds = new ArrayList<>();
+        for (Voucher voucher : cached) {
+            vouchers.add(BeanUtil.copyProperties(voucher, Voucher.class));
+            if (voucher.getStock() != null) {
+                seckillIds.add(voucher.getId());
+            }
+        }
+        // 3. 秒杀券的库存变化很快, 一次pipeline读取redis中的实时库存覆盖缓存中的值
+        if (!seckillIds.isEmpty()) {
+            Map<Long, Integer> stocks = seckillStock.remaining(seckillIds);
+            for (Voucher voucher : vouchers) {
+                Integer stock = stocks.get(voucher.getId());
+                if (voucher.getStock() != null && stock != null) {
+                    voucher.setStock(stock);
+                }
+            }
+        }
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        // 保存优惠券
+        save(voucher);
+        // 提交后删除店铺的优惠券列表缓存
+        cacheOutboxService.record(RedisConstants.CACHE_SHOP_VOUCHER_KEY + voucher.getShopId());
+        // 提交后再加入布隆过滤器
+        Long voucherId = voucher.getId();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                voucherBloomFilter.put(voucherId);
+            }
+        });
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -47,5 +156,21 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 提交后删除店铺的优惠券列表缓存
+        cacheOutboxService.record(RedisConstants.CACHE_SHOP_VOUCHER_KEY + voucher.getShopId());
+        // 提交后各节点加载秒杀券的元数据
+        seckillVoucherService.refreshMetaAfterCommit(voucher.getId());
+        // 事务提交后写入库存并加入布隆过滤器
+        Long voucherId = voucher.getId();
+        Integer stock = voucher.getStock();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                seckillStock.load(voucherId, stock, true);
+                // 先写入库存再清除售罄标记, 清除之前观察到的售罄全部失效
+                soldOutMarker.clear(voucherId);
+                voucherBloomFilter.put(voucherId);
+            }
+        });
     }
 }
@@ -0,0 +1,340 @@
+package com.hmdp.utils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编解码, 适用于字段都是基本类型、字符串、时间的实体类(例如Shop)
+ * 格式: 4字节的字段签名 + 按字段名排序依次写入每个字段(1字节是否为null + 值), 整数使用变长编码
+ * 实体类增删字段后签名改变, 旧数据解码返回null, 按缓存未命中重新加载
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-19 10:40
+ */
+
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte ID = 2;
+    public static final String NAME = "binary";
+
+    private final ConcurrentHashMap<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schemaOf(value.getClass());
+        Output out = new Output(128);
+        out.writeInt(schema.signature);
+        try {
+            for (int i = 0; i < schema.fields.length; i++) {
+                Object fieldValue = schema.fields[i].get(value);
+                if (fieldValue == null) {
+                    out.writeByte(0);
+                    continue;
+                }
+                out.writeByte(1);
+                writeValue(out, schema.types[i], fieldValue);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> type) {
+        Schema schema = schemaOf(type);
+        Input in = new Input(bytes, offset);
+        if (length < 4 || in.readInt() != schema.signature) {
+            return null;
+        }
+        try {
+            R r = type.cast(schema.constructor.newInstance());
+            for (int i = 0; i < schema.fields.length; i++) {
+                if (in.readByte() == 0) {
+                    continue;
+                }
+                schema.fields[i].set(r, readValue(in, schema.types[i]));
+            }
+            return r;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static void writeValue(Output out, FieldType type, Object value) {
+        switch (type) {
+            case STRING:
+                out.writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+                break;
+            case LONG:
+                out.writeVarLong(((Long) value));
+                break;
+            case INT:
+                out.writeVarLong(((Integer) value));
+                break;
+            case SHORT:
+                out.writeVarLong(((Short) value));
+                break;
+            case BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToLongBits((Double) value));
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToIntBits((Float) value));
+                break;
+            case BOOLEAN:
+                out.writeByte((Boolean) value ? 1 : 0);
+                break;
+            case BIG_DECIMAL:
+                out.writeBytes(value.toString().getBytes(StandardCharsets.UTF_8));
+                break;
+            case LOCAL_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            case LOCAL_DATE:
+                out.writeVarLong(((LocalDate) value).toEpochDay());
+                break;
+            default:
+                throw new IllegalStateException("unknown field type " + type);
+        }
+    }
+
+    private static Object readValue(Input in, FieldType type) {
+        switch (type) {
+            case STRING:
+                return in.readString();
+            case LONG:
+                return in.readVarLong();
+            case INT:
+                return (int) in.readVarLong();
+            case SHORT:
+                return (short) in.readVarLong();
+            case BYTE:
+                return in.readByte();
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case BIG_DECIMAL:
+                return new BigDecimal(in.readString());
+            case LOCAL_DATE_TIME:
+                long seconds = in.readVarLong();
+                int nanos = (int) in.readVarLong();
+                return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(in.readVarLong());
+            default:
+                throw new IllegalStateException("unknown field type " + type);
+        }
+    }
+
+    private enum FieldType {
+        STRING, LONG, INT, SHORT, BYTE, DOUBLE, FLOAT, BOOLEAN, BIG_DECIMAL, LOCAL_DATE_TIME, LOCAL_DATE;
+
+        static FieldType of(Field field) {
+            Class<?> c = field.getType();
+            if (c == String.class) {
+                return STRING;
+            } else if (c == Long.class || c == long.class) {
+                return LONG;
+            } else if (c == Integer.class || c == int.class) {
+                return INT;
+            } else if (c == Short.class || c == short.class) {
+                return SHORT;
+            } else if (c == Byte.class || c == byte.class) {
+                return BYTE;
+            } else if (c == Double.class || c == double.class) {
+                return DOUBLE;
+            } else if (c == Float.class || c == float.class) {
+                return FLOAT;
+            } else if (c == Boolean.class || c == boolean.class) {
+                return BOOLEAN;
+            } else if (c == BigDecimal.class) {
+                return BIG_DECIMAL;
+            } else if (c == LocalDateTime.class) {
+                return LOCAL_DATE_TIME;
+            } else if (c == LocalDate.class) {
+                return LOCAL_DATE;
+            }
+            throw new IllegalArgumentException("binary codec does not support field " + field);
+        }
+    }
+
+    /**
+     * 类的字段信息, 按字段名排序, 保证不同节点的顺序一致
+     */
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final FieldType[] types;
+        private final int signature;
+
+        Schema(Class<?> type) {
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("binary codec requires a no-arg constructor: " + type, e);
+            }
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            fields = list.toArray(new Field[0]);
+            types = new FieldType[fields.length];
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = FieldType.of(fields[i]);
+                sb.append(fields[i].getName()).append(':').append(types[i]).append(';');
+            }
+            signature = sb.toString().hashCode();
+        }
+    }
+
+    private static class Output {
+        private byte[] buf;
+        private int pos;
+
+        Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        /**
+         * zigzag + varint, 小的整数只占1~2个字节
+         */
+        void writeVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf, int offset) {
+            this.buf = buf;
+            this.pos = offset;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -1,17 +1,48 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 /**
@@ -24,149 +55,1168 @@ import java.util.function.Function;
 @Slf4j
 @Component
 public class CacheClient {
+
+    /**
+     * 哈希模式的标记field: 1表示实体存在, 0表示数据库中不存在(空值)
+     * 只读取部分字段时, 用它区分key不存在和字段本身为null
+     */
+    private static final byte[] HASH_MARKER = {'@'};
+    private static final byte[] HASH_PRESENT = {'1'};
+    private static final byte[] HASH_ABSENT = {'0'};
+
+    private static final DefaultRedisScript<Long> HASH_UPDATE_SCRIPT;
+    static {
+        HASH_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        HASH_UPDATE_SCRIPT.setLocation(new ClassPathResource("hash_update.lua"));
+        HASH_UPDATE_SCRIPT.setResultType(Long.class);
+    }
+
     private final StringRedisTemplate stringRedisTemplate;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private final CacheProperties cacheProperties;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final CacheMetrics cacheMetrics;
+
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    /**
+     * 进程内一级缓存, 保存的是已经反序列化好的对象, 调用方不要修改返回的对象
+     */
+    private final Cache<String, Object> localCache;
+
+    /**
+     * 热点key的本地副本, 存活时间很短, 用于没有开启一级缓存的key前缀
+     */
+    private final Cache<String, Object> hotReplica;
+
+    /**
+     * 缓存未命中时合并本节点对同一个key的重建请求
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 最近一次加载到的值, 不设过期时间, 只在等待重建超时的时候兜底
+     */
+    private final Cache<String, Object> staleCache;
+
+    /**
+     * key前缀 -> 布隆过滤器
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀 -> 已知不存在的id
+     */
+    private final Map<String, NegativeCache> negativeCaches = new ConcurrentHashMap<>();
+
+    /**
+     * 编号 -> 编解码方式, 用于读取
+     */
+    private final Map<Byte, CacheCodec> codecsById = new ConcurrentHashMap<>();
+
+    /**
+     * 名称 -> 编解码方式, 用于按key前缀选择写入的格式
+     */
+    private final Map<String, CacheCodec> codecsByName = new ConcurrentHashMap<>();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * key前缀 -> 提前刷新策略的计数
+     */
+    private final Map<String, RefreshAheadStats> refreshAheadStats = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheProperties cacheProperties,
+                       RedisMessageListenerContainer listenerContainer, HotKeyDetector hotKeyDetector,
+                       CacheMetrics cacheMetrics, CacheRebuildExecutor rebuildExecutor) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheProperties = cacheProperties;
+        this.listenerContainer = listenerContainer;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheMetrics = cacheMetrics;
+        this.rebuildExecutor = rebuildExecutor;
+        CacheProperties.Local local = cacheProperties.getLocal();
+        this.localCache = CacheUtil.newLRUCache(local.getCapacity(), local.getTtl().toMillis());
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        this.hotReplica = CacheUtil.newLRUCache(hotKey.getReplicaCapacity(), hotKey.getReplicaTtl().toMillis());
+        this.staleCache = CacheUtil.newLRUCache(cacheProperties.getSingleFlight().getStaleCapacity());
+        registerCodec(new JsonCacheCodec());
+        registerCodec(new BinaryCacheCodec());
+        CacheProperties.Negative negative = cacheProperties.getNegative();
+        if (negative.isEnabled()) {
+            // 负缓存的存活时间不超过redis中空值的存活时间, 新增数据时其他节点最晚和空值同时过期
+            Duration nullTtl = Duration.ofMinutes(RedisConstants.CACHE_NULL_TTL);
+            Duration maxTtl = negative.getMaxTtl().compareTo(nullTtl) > 0 ? nullTtl : negative.getMaxTtl();
+            Duration baseTtl = negative.getBaseTtl().compareTo(maxTtl) > 0 ? maxTtl : negative.getBaseTtl();
+            for (String prefix : negative.getPrefixes()) {
+                negativeCaches.put(prefix, new NegativeCache(negative.getCapacity(), baseTtl, maxTtl));
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅失效通知: 任意节点删除了缓存, 所有节点都要清掉自己的一级缓存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            evictLocal(key);
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        // 热点降级后不再保留本地副本
+        hotKeyDetector.addDemoteListener(hotReplica::remove);
+    }
+
+    /**
+     * 为某个key前缀注册布隆过滤器, 查询前先判断id是否可能存在
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 删除缓存, 并通知所有节点清除一级缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除缓存, 删除和失效通知在同一个pipeline中发送, 任何一步失败都会抛出异常
+     */
+    public void deleteBatch(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        byte[] channel = rawKey(RedisConstants.CACHE_INVALIDATE_CHANNEL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.del(rawKey(key));
+                connection.publish(channel, rawKey(key));
+            }
+            return null;
+        });
+        for (String key : keys) {
+            evictLocal(key);
+        }
     }
 
+    /**
+     * 统计一个key前缀的过期时间分布, 用来确认过期时间确实被打散
+     * 物理过期取PTTL, 没有设置物理过期的读取头部中的逻辑过期时间
+     * @param limit 最多抽样的key数量
+     * @param bucketSeconds 每个桶的宽度(秒), 不小于1
+     * @return 抽样数、没有过期时间的数量、已经逻辑过期的数量, 以及 剩余秒数所在桶的起点 -> key数量
+     */
+    public Map<String, Object> expiryHistogram(String keyPrefix, int limit, long bucketSeconds) {
+        if (bucketSeconds < 1) {
+            throw new IllegalArgumentException("bucketSeconds must be at least 1: " + bucketSeconds);
+        }
+        // 1. SCAN抽样key, 不阻塞redis
+        List<byte[]> keys = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().match(keyPrefix + "*").count(1000).build();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext() && keys.size() < limit) {
+                    keys.add(cursor.next());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+        // 2. 一次pipeline取回每个key的PTTL和头部, 头部按原始字节返回
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] key : keys) {
+                connection.pTtl(key);
+                connection.getRange(key, 0, CacheEnvelope.HEADER_LENGTH - 1);
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        // 3. 按剩余时间分桶
+        long now = System.currentTimeMillis();
+        long bucketMillis = TimeUnit.SECONDS.toMillis(bucketSeconds);
+        Map<Long, Long> buckets = new TreeMap<>();
+        long noExpiry = 0;
+        long expired = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            Long pttl = (Long) replies.get(2 * i);
+            Object header = replies.get(2 * i + 1);
+            long remaining = -1;
+            if (pttl != null && pttl >= 0) {
+                remaining = pttl;
+            } else if (header instanceof byte[] && CacheEnvelope.isEnvelope((byte[]) header)
+                    && CacheEnvelope.expireAt((byte[]) header) > 0) {
+                remaining = CacheEnvelope.expireAt((byte[]) header) - now;
+                if (remaining < 0) {
+                    expired++;
+                    continue;
+                }
+            }
+            if (remaining < 0) {
+                noExpiry++;
+                continue;
+            }
+            buckets.merge(remaining / bucketMillis * bucketSeconds, 1L, Long::sum);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("prefix", keyPrefix);
+        result.put("sampled", keys.size());
+        result.put("noExpiry", noExpiry);
+        result.put("logicallyExpired", expired);
+        result.put("bucketSeconds", bucketSeconds);
+        result.put("buckets", buckets);
+        return result;
+    }
+
+    /**
+     * 注册自定义的编解码方式, 之后可以在hmdp.cache.codecs中按key前缀使用
+     */
+    public void registerCodec(CacheCodec codec) {
+        codecsById.put(codec.id(), codec);
+        codecsByName.put(codec.name(), codec);
+    }
+
+    /**
+     * 写入缓存, 过期时间按key前缀的配置随机增加一部分, 见hmdp.cache.ttl-jitter
+     */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        writeRaw(key, encode(key, value, 0), Expiration.milliseconds(jitteredTtl(key, unit.toMillis(time))));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        // 设置逻辑过期, 过期时间写在头部
+        long expireAt = System.currentTimeMillis() + jitteredTtl(key, unit.toMillis(time));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        writeRaw(key, encode(key, value, expireAt), Expiration.persistent());
+    }
+
+    /**
+     * 批量写入缓存, 一次pipeline完成
+     * 每个key的过期时间单独随机, 避免同一批数据同时过期; redis的过期时间和头部的过期时间相同,
+     * 与提前刷新写入的格式一致, 读请求接近过期时在后台刷新, 没有读请求的key到期后由redis删除
+     */
+    public void setBatch(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long base = unit.toMillis(time);
+        // 先在当前线程完成序列化, pipeline里只做写入
+        int n = values.size();
+        byte[][] keys = new byte[n][];
+        byte[][] encoded = new byte[n][];
+        long[] ttls = new long[n];
+        int i = 0;
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            ttls[i] = jitteredTtl(entry.getKey(), base);
+            keys[i] = rawKey(entry.getKey());
+            encoded[i] = encode(entry.getKey(), entry.getValue(), now + ttls[i]);
+            i++;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int j = 0; j < n; j++) {
+                connection.set(keys[j], encoded[j], Expiration.milliseconds(ttls[j]), RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+        CacheMetrics.Stats stats = cacheMetrics.stats(keyPrefix, CacheMetrics.Strategy.PASS_THROUGH);
+        // 0.先查一级缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            stats.localHit();
+            return local;
         }
-        // 判断命中的是否是空值
-        if (json != null) {
-            // 返回一个错误信息
+        // 0.1.布隆过滤器判断id一定不存在, 直接返回
+        if (isAbsent(keyPrefix, id)) {
+            stats.bloomReject();
             return null;
         }
+        // 0.2.本节点已经确认不存在, 不再访问redis
+        if (isKnownMissing(keyPrefix, id)) {
+            stats.negativeHit();
+            return null;
+        }
+        // 1.从redis查询商铺缓存
+        byte[] raw = getRaw(key);
+        // 2.判断是否存在
+        if (raw != null) {
+            // 判断命中的是否是空值
+            if (raw.length == 0) {
+                stats.nullHit();
+                markMissing(keyPrefix, id);
+                // 返回一个错误信息
+                return null;
+            }
+            // 3.存在，直接返回; 解码失败说明数据结构变了, 当作未命中
+            R r = decode(key, raw, type);
+            if (r != null) {
+                stats.hit();
+                putLocal(keyPrefix, key, r);
+                return r;
+            }
+        }
 
         // 4.不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
+        stats.miss();
+        R r = loadFromDb(stats, dbFallback, id);
         // 5.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(keyPrefix, id);
             // 返回错误信息
             return null;
         }
         // 6.存在，写入redis
         this.set(key, r, time, unit);
+        putLocal(keyPrefix, key, r);
         return r;
     }
 
+    /**
+     * 批量查询, 命中的key一次MGET取回, 未命中的一次性查询数据库, 再通过pipeline批量写回
+     * 空值的处理与queryWithPassThrough一致
+     * @param dbFallback 根据一批id查询数据库, 返回id -> 实体, 不存在的id不放入map
+     * @return id -> 实体, 按ids的顺序排列, 不存在的id不放入map
+     */
+    public <R, ID> Map<ID, R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID, R>> dbFallback,
+            Long time, TimeUnit unit) {
+        CacheMetrics.Stats stats = cacheMetrics.stats(keyPrefix, CacheMetrics.Strategy.BATCH);
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        // 1.先查一级缓存和布隆过滤器
+        List<ID> pending = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            R local = getLocal(keyPrefix, keyPrefix + id, type);
+            if (local != null) {
+                stats.localHit();
+                found.put(id, local);
+            } else if (isAbsent(keyPrefix, id)) {
+                stats.bloomReject();
+            } else if (isKnownMissing(keyPrefix, id)) {
+                stats.negativeHit();
+            } else {
+                pending.add(id);
+            }
+        }
+        if (!pending.isEmpty()) {
+            // 2.一次MGET查询redis
+            byte[][] keys = new byte[pending.size()][];
+            for (int i = 0; i < pending.size(); i++) {
+                keys[i] = rawKey(keyPrefix + pending.get(i));
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+            List<ID> misses = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                byte[] raw = values == null ? null : values.get(i);
+                // 空值代表数据库中不存在, 直接跳过
+                if (raw != null && raw.length == 0) {
+                    stats.nullHit();
+                    markMissing(keyPrefix, pending.get(i));
+                    continue;
+                }
+                R r = raw == null ? null : decode(keyPrefix + pending.get(i), raw, type);
+                if (r != null) {
+                    // 2.1.命中, 直接使用
+                    stats.hit();
+                    stats.bytesRead(raw.length);
+                    putLocal(keyPrefix, keyPrefix + pending.get(i), r);
+                    found.put(pending.get(i), r);
+                } else {
+                    // 2.2.未命中, 需要查询数据库
+                    stats.miss();
+                    misses.add(pending.get(i));
+                }
+            }
+            // 3.未命中的id一次性查询数据库, 并批量写回redis
+            if (!misses.isEmpty()) {
+                long start = System.nanoTime();
+                Map<ID, R> loaded = dbFallback.apply(misses);
+                stats.dbLoad(System.nanoTime() - start);
+                writeBatch(keyPrefix, misses, loaded, time, unit);
+                for (ID id : misses) {
+                    R r = loaded.get(id);
+                    if (r != null) {
+                        putLocal(keyPrefix, keyPrefix + id, r);
+                        found.put(id, r);
+                    }
+                }
+            }
+        }
+        // 4.按传入的顺序返回
+        Map<ID, R> result = new LinkedHashMap<>(found.size() * 2);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 通过pipeline批量写回, 不存在的id写入空值
+     */
+    private <R, ID> void writeBatch(String keyPrefix, List<ID> ids, Map<ID, R> loaded, Long time, TimeUnit unit) {
+        long valueTtl = unit.toMillis(time);
+        long nullTtl = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                R r = loaded.get(id);
+                String key = keyPrefix + id;
+                if (r == null) {
+                    markMissing(keyPrefix, id);
+                    connection.set(rawKey(key), new byte[0], Expiration.milliseconds(jitteredTtl(key, nullTtl)),
+                            RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.set(rawKey(key), encode(key, r, 0), Expiration.milliseconds(jitteredTtl(key, valueTtl)),
+                            RedisStringCommands.SetOption.upsert());
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 哈希模式的批量投影查询, 每个key只用HMGET取回需要的字段, 全部在一次pipeline中完成
+     * 未命中的id一次性查询数据库, 完整实体写入hash, 返回的仍然只包含需要的字段
+     * 投影结果不完整, 不放入一级缓存
+     * @param fields 需要的字段名, 例如列表卡片只需要name、images、area、avgPrice、comments、score
+     * @param dbFallback 根据一批id查询数据库, 返回id -> 实体, 不存在的id不放入map
+     * @return id -> 只填充了fields的实体, 按ids的顺序排列, 不存在的id不放入map
+     */
+    public <R, ID> Map<ID, R> queryHashProjection(
+            String keyPrefix, Collection<ID> ids, Class<R> type, String[] fields,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        CacheMetrics.Stats stats = cacheMetrics.stats(keyPrefix, CacheMetrics.Strategy.HASH);
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        // 1.先判断布隆过滤器和负缓存
+        List<ID> pending = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (isAbsent(keyPrefix, id)) {
+                stats.bloomReject();
+            } else if (isKnownMissing(keyPrefix, id)) {
+                stats.negativeHit();
+            } else {
+                pending.add(id);
+            }
+        }
+        if (!pending.isEmpty()) {
+            // 2.一次pipeline对每个key执行HMGET, 第一个field是标记, 结果按原始字节返回
+            byte[][] rawFields = new byte[fields.length + 1][];
+            rawFields[0] = HASH_MARKER;
+            for (int i = 0; i < fields.length; i++) {
+                rawFields[i + 1] = rawKey(fields[i]);
+            }
+            List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : pending) {
+                    connection.hMGet(rawKey(keyPrefix + id), rawFields);
+                }
+                return null;
+            }, RedisSerializer.byteArray());
+            List<ID> misses = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                ID id = pending.get(i);
+                List<?> values = (List<?>) replies.get(i);
+                byte[] marker = values == null || values.isEmpty() ? null : (byte[]) values.get(0);
+                if (marker == null) {
+                    // 2.1.未命中, 需要查询数据库
+                    stats.miss();
+                    misses.add(id);
+                    continue;
+                }
+                if (Arrays.equals(marker, HASH_ABSENT)) {
+                    // 2.2.空值代表数据库中不存在, 直接跳过
+                    stats.nullHit();
+                    markMissing(keyPrefix, id);
+                    continue;
+                }
+                // 2.3.命中, 只转换取回的字段
+                Map<String, String> projected = new HashMap<>(fields.length * 2);
+                long bytes = 0;
+                for (int j = 0; j < fields.length; j++) {
+                    byte[] value = (byte[]) values.get(j + 1);
+                    if (value != null) {
+                        projected.put(fields[j], new String(value, StandardCharsets.UTF_8));
+                        bytes += value.length;
+                    }
+                }
+                stats.hit();
+                stats.bytesRead(bytes);
+                found.put(id, BeanUtil.toBean(projected, type));
+            }
+            // 3.未命中的id一次性查询数据库, 完整实体批量写回
+            if (!misses.isEmpty()) {
+                long start = System.nanoTime();
+                Map<ID, R> loaded = dbFallback.apply(misses);
+                stats.dbLoad(System.nanoTime() - start);
+                long valueTtl = unit.toMillis(time);
+                long nullTtl = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : misses) {
+                        R r = loaded.get(id);
+                        if (r == null) {
+                            markMissing(keyPrefix, id);
+                        }
+                        writeHash(connection, keyPrefix + id, r, r == null ? nullTtl : valueTtl);
+                    }
+                    return null;
+                });
+                for (ID id : misses) {
+                    R r = loaded.get(id);
+                    if (r != null) {
+                        found.put(id, project(r, type, fields));
+                    }
+                }
+            }
+        }
+        // 4.按传入的顺序返回
+        Map<ID, R> result = new LinkedHashMap<>(found.size() * 2);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 哈希模式的字段级更新, 只覆盖传入的字段, 不重写整个条目
+     * key不存在时不写入, 下次查询按未命中从数据库加载完整实体; 版本号不大于已经写入的版本时不写入
+     * @param version 本次更新的版本号, 同一个key的更新按提交顺序递增
+     * @param fields 字段名 -> 新值, 值为null的字段忽略
+     * @return 是否写入
+     */
+    public boolean updateHashFields(String key, long version, Map<String, ?> fields) {
+        List<String> args = new ArrayList<>(fields.size() * 2 + 1);
+        args.add(String.valueOf(version));
+        fields.forEach((field, value) -> {
+            if (value != null) {
+                args.add(field);
+                args.add(value.toString());
+            }
+        });
+        if (args.size() == 1) {
+            return false;
+        }
+        Long applied = stringRedisTemplate.execute(HASH_UPDATE_SCRIPT, Collections.singletonList(key), args.toArray());
+        return applied != null && applied == 1;
+    }
+
+    /**
+     * 对比同一个实体在json模式和哈希模式下的存储开销
+     * @param fields 哈希模式下一次投影读取的字段
+     * @return 两个key的MEMORY USAGE, json的完整字节数, 以及投影实际读取的字节数
+     */
+    public Map<String, Object> compareStorage(String jsonKey, String hashKey, String[] fields) {
+        byte[] rawJsonKey = rawKey(jsonKey);
+        byte[] rawHashKey = rawKey(hashKey);
+        byte[][] rawFields = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            rawFields[i] = rawKey(fields[i]);
+        }
+        return stringRedisTemplate.execute((RedisCallback<Map<String, Object>>) connection -> {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("jsonKey", jsonKey);
+            result.put("jsonMemoryUsage", connection.execute("MEMORY", rawKey("USAGE"), rawJsonKey));
+            result.put("jsonBytes", connection.strLen(rawJsonKey));
+            result.put("hashKey", hashKey);
+            result.put("hashMemoryUsage", connection.execute("MEMORY", rawKey("USAGE"), rawHashKey));
+            long projectionBytes = 0;
+            List<byte[]> values = connection.hMGet(rawHashKey, rawFields);
+            if (values != null) {
+                for (byte[] value : values) {
+                    projectionBytes += value == null ? 0 : value.length;
+                }
+            }
+            result.put("projectionFields", fields);
+            result.put("projectionBytes", projectionBytes);
+            return result;
+        });
+    }
+
+    /**
+     * 写入一个哈希模式的条目, 先删除旧key, 避免残留已经变为null的字段
+     */
+    private void writeHash(RedisConnection connection, String key, Object value, long ttlMillis) {
+        byte[] rawKey = rawKey(key);
+        Map<byte[], byte[]> hash = new LinkedHashMap<>();
+        if (value == null) {
+            hash.put(HASH_MARKER, HASH_ABSENT);
+        } else {
+            hash.put(HASH_MARKER, HASH_PRESENT);
+            toHashFields(value).forEach((field, v) -> hash.put(rawKey(field), rawKey(v)));
+        }
+        connection.del(rawKey);
+        connection.hMSet(rawKey, hash);
+        connection.pExpire(rawKey, jitteredTtl(key, ttlMillis));
+    }
+
+    /**
+     * 实体的非空字段 -> 字符串值, 时间类型使用ISO格式, BeanUtil.toBean可以转换回来
+     */
+    private static Map<String, String> toHashFields(Object value) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        BeanUtil.beanToMap(value, false, true).forEach((field, v) -> fields.put(field, v.toString()));
+        return fields;
+    }
+
+    /**
+     * 只保留需要的字段, 保证未命中和命中时返回的内容一致
+     */
+    private static <R> R project(R value, Class<R> type, String[] fields) {
+        Map<String, String> all = toHashFields(value);
+        Map<String, String> projected = new HashMap<>(fields.length * 2);
+        for (String field : fields) {
+            String v = all.get(field);
+            if (v != null) {
+                projected.put(field, v);
+            }
+        }
+        return BeanUtil.toBean(projected, type);
+    }
+
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        CacheMetrics.Stats stats = cacheMetrics.stats(keyPrefix, CacheMetrics.Strategy.LOGICAL_EXPIRE);
+        // 0.先查一级缓存, 本地条目的存活时间远小于逻辑过期时间, 命中时不再判断逻辑过期
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            stats.localHit();
+            return local;
+        }
+        // 0.1.布隆过滤器判断id一定不存在, 直接返回
+        if (isAbsent(keyPrefix, id)) {
+            stats.bloomReject();
+            return null;
+        }
+        // 0.2.本节点已经确认不存在, 不再访问redis
+        if (isKnownMissing(keyPrefix, id)) {
+            stats.negativeHit();
+            return null;
+        }
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] raw = getRaw(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (raw == null || raw.length == 0) {
             // 3.存在，直接返回
+            stats.miss();
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
+        // 4.命中，需要先把数据反序列化为对象, 过期时间直接从头部读取
+        R r = decode(key, raw, type);
+        long expireAt = logicalExpireAt(raw);
+        // 5.判断是否过期, 0代表没有设置逻辑过期
+        if (r != null && (expireAt == 0 || expireAt > System.currentTimeMillis())) {
             // 5.1.未过期，直接返回店铺信息
+            stats.hit();
+            putLocal(keyPrefix, key, r);
             return r;
         }
         // 5.2.已过期，需要缓存重建
-        // 6.缓存重建
-        // 6.1.获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if (isLock){
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R newR = dbFallback.apply(id);
-                    // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
-        // 6.4.返回过期的商铺信息
+        stats.staleServed();
+        // 6.缓存重建, 本节点同一个key只提交一次, 队列已满时不再重建
+        rebuildExecutor.submit(key, () -> {
+            // 6.1.获取互斥锁, 失败说明其他节点正在重建
+            String lockKey = lockKeyOf(keyPrefix, id);
+            if (!tryLock(lockKey)) {
+                return;
+            }
+            try {
+                // 6.2.查询数据库并重建缓存
+                R newR = loadFromDb(stats, dbFallback, id);
+                this.setWithLogicalExpire(key, newR, time, unit);
+            } finally {
+                // 6.3.释放锁
+                unlock(lockKey);
+            }
+        });
+        // 7.返回过期的商铺信息
         return r;
     }
 
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        CacheMetrics.Stats stats = cacheMetrics.stats(keyPrefix, CacheMetrics.Strategy.MUTEX);
+        // 0.先查一级缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            stats.localHit();
+            return local;
+        }
+        // 0.1.布隆过滤器判断id一定不存在, 直接返回
+        if (isAbsent(keyPrefix, id)) {
+            stats.bloomReject();
+            return null;
+        }
+        // 0.2.本节点已经确认不存在, 不再访问redis
+        if (isKnownMissing(keyPrefix, id)) {
+            stats.negativeHit();
+            return null;
+        }
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] raw = getRaw(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
+        if (raw != null) {
+            // 判断命中的是否是空值
+            if (raw.length == 0) {
+                stats.nullHit();
+                markMissing(keyPrefix, id);
+                // 返回一个错误信息
+                return null;
+            }
             // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            R r = toCachedValue(keyPrefix, key, raw, type);
+            if (r != null) {
+                stats.hit();
+                return r;
+            }
+        }
+        stats.miss();
+
+        // 4.实现缓存重建, 本节点同一个key只放一个线程去抢互斥锁, 其余线程等待它的结果
+        long timeoutMillis = cacheProperties.getSingleFlight().getTimeout().toMillis();
+        try {
+            return singleFlight.execute(key,
+                    () -> rebuildWithMutex(keyPrefix, id, type, dbFallback, time, unit, timeoutMillis, stats),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // 等待超时, 用旧值兜底
+            log.warn("等待缓存重建超时, key: {}", key);
+            stats.staleServed();
+            return getStale(key, type);
+        }
+    }
+
+    private <R, ID> R rebuildWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                       Long time, TimeUnit unit, long timeoutMillis, CacheMetrics.Stats stats) {
+        String key = keyPrefix + id;
+        String lockKey = lockKeyOf(keyPrefix, id);
+        long waitStart = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            // 4.1.获取互斥锁
+            if (tryLock(lockKey)) {
+                stats.lockWait(System.nanoTime() - waitStart);
+                try {
+                    // 4.2.获取锁成功, 再次检查redis, 可能别的节点已经重建完成
+                    byte[] raw = getRaw(key);
+                    if (raw != null && raw.length == 0) {
+                        markMissing(keyPrefix, id);
+                        return null;
+                    }
+                    R cached = raw == null ? null : toCachedValue(keyPrefix, key, raw, type);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    // 4.3.根据id查询数据库
+                    R r = loadFromDb(stats, dbFallback, id);
+                    // 5.不存在，返回错误
+                    if (r == null) {
+                        // 将空值写入redis
+                        setNull(keyPrefix, id);
+                        return null;
+                    }
+                    // 6.存在，写入redis
+                    this.set(key, r, time, unit);
+                    putLocal(keyPrefix, key, r);
+                    staleCache.put(key, r);
+                    return r;
+                } finally {
+                    // 7.释放锁
+                    unlock(lockKey);
+                }
+            }
+            // 4.4.锁在其他节点手里, 短暂等待后直接读redis, 超时则返回旧值
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("等待其他节点重建缓存超时, key: {}", key);
+                stats.lockWait(System.nanoTime() - waitStart);
+                stats.staleServed();
+                return getStale(key, type);
+            }
+            stats.lockRetry();
+            try {
+                Thread.sleep(RedisConstants.LOCK_SHOP_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stats.staleServed();
+                return getStale(key, type);
+            }
+            byte[] raw = getRaw(key);
+            if (raw != null && raw.length == 0) {
+                markMissing(keyPrefix, id);
+                return null;
+            }
+            R cached = raw == null ? null : toCachedValue(keyPrefix, key, raw, type);
+            if (cached != null) {
+                stats.lockWait(System.nanoTime() - waitStart);
+                return cached;
+            }
+        }
+    }
+
+    /**
+     * 提前刷新(XFetch): 缓存中同时保存过期时间和重建耗时, 越接近过期, 读请求越有可能触发后台刷新
+     * 触发条件: now - cost * beta * ln(random) >= expireAt, 热点key通常在过期之前就被刷新, 调用方看不到未命中
+     */
+    public <R, ID> R queryWithRefreshAhead(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        CacheMetrics.Stats metrics = cacheMetrics.stats(keyPrefix, CacheMetrics.Strategy.REFRESH_AHEAD);
+        // 0.先查一级缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.localHit();
+            return local;
+        }
+        // 0.1.布隆过滤器判断id一定不存在, 直接返回
+        if (isAbsent(keyPrefix, id)) {
+            metrics.bloomReject();
+            return null;
         }
-        // 判断命中的是否是空值
-        if (shopJson != null) {
-            // 返回一个错误信息
+        // 0.2.本节点已经确认不存在, 不再访问redis
+        if (isKnownMissing(keyPrefix, id)) {
+            metrics.negativeHit();
             return null;
         }
+        RefreshAheadStats stats = refreshAheadStats.computeIfAbsent(keyPrefix, k -> new RefreshAheadStats());
+        // 1.从redis查询缓存
+        byte[] raw = getRaw(key);
+        if (raw != null) {
+            // 判断命中的是否是空值
+            if (raw.length == 0) {
+                metrics.nullHit();
+                markMissing(keyPrefix, id);
+                return null;
+            }
+            R r = toCachedValue(keyPrefix, key, raw, type);
+            if (r != null) {
+                stats.hit();
+                metrics.hit();
+                // 2.命中, 按概率决定是否提前刷新, 同一时刻只有一个节点刷新
+                if (shouldRefreshEarly(keyPrefix, raw) && rebuildExecutor.submit(key, () -> {
+                    String lockKey = RedisConstants.LOCK_REFRESH_KEY + key;
+                    if (!tryLock(lockKey)) {
+                        return;
+                    }
+                    try {
+                        loadWithCost(keyPrefix, id, dbFallback, time, unit, metrics);
+                    } finally {
+                        unlock(lockKey);
+                    }
+                })) {
+                    stats.earlyRefresh();
+                }
+                return r;
+            }
+        }
+        // 3.已经过期, 同步加载, 本节点同一个key只加载一次
+        stats.hardMiss();
+        metrics.miss();
+        long timeoutMillis = cacheProperties.getSingleFlight().getTimeout().toMillis();
+        try {
+            return singleFlight.execute(key, () -> loadWithCost(keyPrefix, id, dbFallback, time, unit, metrics),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("等待缓存加载超时, key: {}", key);
+            metrics.staleServed();
+            return getStale(key, type);
+        }
+    }
+
+    /**
+     * 各个key前缀提前刷新策略的计数
+     */
+    public Map<String, RefreshAheadStats> getRefreshAheadStats() {
+        return Collections.unmodifiableMap(refreshAheadStats);
+    }
+
+    private boolean shouldRefreshEarly(String keyPrefix, byte[] raw) {
+        long expireAt = CacheEnvelope.isEnvelope(raw) ? CacheEnvelope.expireAt(raw) : 0;
+        if (expireAt == 0) {
+            return false;
+        }
+        CacheProperties.RefreshAhead conf = cacheProperties.getRefreshAhead()
+                .getOrDefault(keyPrefix, CacheProperties.RefreshAhead.DEFAULT);
+        long cost = Math.max(CacheEnvelope.cost(raw), conf.getMinCost());
+        // ln(random)是负数, 剩余时间越短越容易触发; 1 - nextDouble()避免取到0
+        double gap = -cost * conf.getBeta() * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        R r = null;
+    /**
+     * 查询数据库并记录耗时, 与过期时间一起写入缓存
+     */
+    private <R, ID> R loadWithCost(String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                   CacheMetrics.Stats metrics) {
+        String key = keyPrefix + id;
+        long start = System.nanoTime();
+        R r = dbFallback.apply(id);
+        long elapsed = System.nanoTime() - start;
+        metrics.dbLoad(elapsed);
+        int cost = (int) TimeUnit.NANOSECONDS.toMillis(elapsed);
+        if (r == null) {
+            setNull(keyPrefix, id);
+            return null;
+        }
+        long ttl = jitteredTtl(key, unit.toMillis(time));
+        long expireAt = System.currentTimeMillis() + ttl;
+        writeRaw(key, compress(key, CacheEnvelope.wrap(codecFor(key), r, expireAt, cost)), Expiration.milliseconds(ttl));
+        putLocal(keyPrefix, key, r);
+        staleCache.put(key, r);
+        return r;
+    }
+
+    /**
+     * 查询数据库并记录耗时
+     */
+    private <R, ID> R loadFromDb(CacheMetrics.Stats stats, Function<ID, R> dbFallback, ID id) {
+        long start = System.nanoTime();
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
+            return dbFallback.apply(id);
+        } finally {
+            stats.dbLoad(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 把redis中读到的非空值转换为对象, 并放入本地缓存
+     */
+    private <R> R toCachedValue(String keyPrefix, String key, byte[] raw, Class<R> type) {
+        R r = decode(key, raw, type);
+        if (r != null) {
+            putLocal(keyPrefix, key, r);
+            staleCache.put(key, r);
+        }
+        return r;
+    }
+
+    private byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getRaw(String key) {
+        byte[] rawKey = rawKey(key);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * 写入空值, 防止缓存穿透
+     */
+    private void setNull(String keyPrefix, Object id) {
+        String key = keyPrefix + id;
+        markMissing(keyPrefix, id);
+        long ttl = jitteredTtl(key, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+        writeRaw(key, new byte[0], Expiration.milliseconds(ttl));
+    }
+
+    /**
+     * 在ttl的基础上随机增加[0, max(ttl * percent, window)), 让同时写入的key分散过期
+     */
+    private long jitteredTtl(String key, long ttlMillis) {
+        CacheProperties.TtlJitter jitter = cacheProperties.getTtlJitter().get(longestPrefix(cacheProperties.getTtlJitter(), key));
+        if (jitter == null) {
+            return ttlMillis;
+        }
+        long bound = Math.max((long) (ttlMillis * jitter.getPercent()), jitter.getWindow().toMillis());
+        return bound > 0 ? ttlMillis + ThreadLocalRandom.current().nextLong(bound) : ttlMillis;
+    }
+
+    /**
+     * 在配置中找到匹配key的最长前缀, 没有匹配时返回null
+     */
+    private static String longestPrefix(Map<String, ?> config, String key) {
+        String matched = null;
+        for (String prefix : config.keySet()) {
+            if (key.startsWith(prefix) && (matched == null || prefix.length() > matched.length())) {
+                matched = prefix;
+            }
+        }
+        return matched;
+    }
+
+    private void writeRaw(String key, byte[] value, Expiration expiration) {
+        byte[] rawKey = rawKey(key);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 按key前缀选择编解码方式, 多个前缀匹配时取最长的
+     */
+    private CacheCodec codecFor(String key) {
+        String matched = longestPrefix(cacheProperties.getCodecs(), key);
+        if (matched == null) {
+            return codecsByName.get(JsonCacheCodec.NAME);
+        }
+        CacheCodec codec = codecsByName.get(cacheProperties.getCodecs().get(matched));
+        if (codec == null) {
+            throw new IllegalStateException("unknown cache codec for " + matched);
+        }
+        return codec;
+    }
+
+    private byte[] encode(String key, Object value, long logicalExpireAt) {
+        return compress(key, CacheEnvelope.wrap(codecFor(key), value, logicalExpireAt));
+    }
+
+    /**
+     * 按key前缀的配置压缩编码后的数据, 见hmdp.cache.compression
+     */
+    private byte[] compress(String key, byte[] envelope) {
+        String prefix = longestPrefix(cacheProperties.getCompression(), key);
+        if (prefix == null) {
+            return envelope;
+        }
+        CacheProperties.Compression conf = cacheProperties.getCompression().get(prefix);
+        CacheMetrics.CompressionStats stats = cacheMetrics.compression(prefix);
+        int before = envelope.length - CacheEnvelope.payloadOffset(envelope);
+        if (before < conf.getThreshold().toBytes()) {
+            stats.skipped();
+            return envelope;
+        }
+        long start = System.nanoTime();
+        byte[] compressed = CacheEnvelope.compress(envelope, conf.getLevel());
+        stats.compressed(before, compressed.length - CacheEnvelope.payloadOffset(compressed), System.nanoTime() - start);
+        return compressed;
+    }
+
+    /**
+     * 解码, 头部记录了写入时的编解码方式和是否压缩; 没有头部的是迁移前写入的json
+     */
+    private <R> R decode(String key, byte[] raw, Class<R> type) {
+        if (CacheEnvelope.isEnvelope(raw)) {
+            CacheCodec codec = codecsById.get(CacheEnvelope.codecId(raw));
+            if (codec == null) {
+                log.warn("unknown cache codec id {}", CacheEnvelope.codecId(raw));
                 return null;
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
+            if (CacheEnvelope.isCompressed(raw)) {
+                long start = System.nanoTime();
+                byte[] payload = CacheEnvelope.payload(raw);
+                // 配置修改后已经不压缩的前缀, 旧数据仍然可以读取, 只是不再统计
+                String prefix = longestPrefix(cacheProperties.getCompression(), key);
+                if (prefix != null) {
+                    cacheMetrics.compression(prefix).decompressed(System.nanoTime() - start);
+                }
+                return codec.decode(payload, 0, payload.length, type);
+            }
+            int offset = CacheEnvelope.payloadOffset(raw);
+            return codec.decode(raw, offset, raw.length - offset, type);
         }
-        // 8.返回
-        return r;
+        String json = new String(raw, StandardCharsets.UTF_8);
+        if (JSONUtil.isJsonObj(json)) {
+            JSONObject obj = JSONUtil.parseObj(json);
+            if (obj.containsKey("expireTime") && obj.containsKey("data")) {
+                // 迁移前setWithLogicalExpire写入的RedisData
+                return obj.getJSONObject("data").toBean(type);
+            }
+            return obj.toBean(type);
+        }
+        return JSONUtil.parse(json).toBean(type);
+    }
+
+    /**
+     * 读取逻辑过期时间, 兼容迁移前的RedisData格式
+     */
+    private long logicalExpireAt(byte[] raw) {
+        if (CacheEnvelope.isEnvelope(raw)) {
+            return CacheEnvelope.expireAt(raw);
+        }
+        RedisData redisData = JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), RedisData.class);
+        LocalDateTime expireTime = redisData.getExpireTime();
+        return expireTime == null ? 0 : expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private <R> R getStale(String key, Class<R> type) {
+        Object value = staleCache.get(key, false);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    private boolean isAbsent(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter != null && id instanceof Number && !bloomFilter.mightContain(((Number) id).longValue());
+    }
+
+    private boolean isKnownMissing(String keyPrefix, Object id) {
+        NegativeCache negativeCache = negativeCaches.get(keyPrefix);
+        return negativeCache != null && id instanceof Number && negativeCache.contains(((Number) id).longValue());
+    }
+
+    private void markMissing(String keyPrefix, Object id) {
+        NegativeCache negativeCache = negativeCaches.get(keyPrefix);
+        if (negativeCache != null && id instanceof Number) {
+            negativeCache.add(((Number) id).longValue());
+        }
+    }
+
+    /**
+     * 清除本节点的一级缓存、热点副本和负缓存
+     */
+    private void evictLocal(String key) {
+        localCache.remove(key);
+        hotReplica.remove(key);
+        for (Map.Entry<String, NegativeCache> entry : negativeCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                try {
+                    entry.getValue().remove(Long.parseLong(key.substring(entry.getKey().length())));
+                } catch (NumberFormatException ignored) {
+                    // 不是数字id
+                }
+            }
+        }
+    }
+
+    private boolean isLocalEnabled(String keyPrefix) {
+        CacheProperties.Local local = cacheProperties.getLocal();
+        return local.isEnabled() && local.getPrefixes().contains(keyPrefix);
+    }
+
+    /**
+     * 查询本地缓存, 同时记录一次访问用于热点探测
+     * 开启了一级缓存的前缀查一级缓存, 其他前缀只有热点key才有本地副本
+     */
+    private <R> R getLocal(String keyPrefix, String key, Class<R> type) {
+        boolean hot = hotKeyDetector.record(key);
+        Object value = null;
+        // 不刷新访问时间, 保证条目最多存活ttl
+        if (isLocalEnabled(keyPrefix)) {
+            value = localCache.get(key, false);
+        } else if (hot) {
+            value = hotReplica.get(key, false);
+        }
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (isLocalEnabled(keyPrefix)) {
+            localCache.put(key, value);
+        } else if (hotKeyDetector.isHot(key)) {
+            hotReplica.put(key, value);
+        }
+    }
+
+    /**
+     * 重建缓存的互斥锁, 店铺沿用lock:shop:{id}, 其他前缀使用lock:{key}, 避免不同前缀的相同id互相等待
+     */
+    private String lockKeyOf(String keyPrefix, Object id) {
+        if (RedisConstants.CACHE_SHOP_KEY.equals(keyPrefix)) {
+            return RedisConstants.LOCK_SHOP_KEY + id;
+        }
+        return RedisConstants.LOCK_CACHE_KEY + keyPrefix + id;
     }
 
     private boolean tryLock(String key) {
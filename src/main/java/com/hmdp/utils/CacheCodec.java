@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码方式, 编码结果会放在CacheEnvelope的头部之后
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-19 10:05
+ */
+
+public interface CacheCodec {
+
+    /**
+     * 写入头部的编号, 读取时根据编号选择解码方式, 不能重复
+     */
+    byte id();
+
+    /**
+     * 在配置中使用的名称
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    /**
+     * 解码, 数据与当前的类型不匹配时返回null, 当作缓存未命中处理
+     */
+    <R> R decode(byte[] bytes, int offset, int length, Class<R> type);
+}
@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 缓存值在redis中的存储格式: 固定长度的头部 + 编码后的数据
+ * 头部: 1字节魔数 + 1字节编码方式 + 1字节标志位 + 8字节逻辑过期时间(毫秒时间戳, 0代表没有逻辑过期)
+ * 标志位FLAG_COST表示头部之后还有4字节的重建耗时(毫秒), 之后才是数据
+ * 标志位FLAG_COMPRESSED表示数据经过deflate压缩, 压缩数据之前是4字节的原始长度
+ * 判断逻辑过期时只需要读取头部, 不用解码数据
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-19 14:15
+ */
+
+public class CacheEnvelope {
+
+    /**
+     * 魔数, json一定以'{'、'['、'"'等可见字符开头, 不会与它冲突
+     */
+    public static final byte MAGIC = (byte) 0xCA;
+
+    public static final int HEADER_LENGTH = 11;
+
+    /**
+     * 头部之后带有重建耗时
+     */
+    public static final byte FLAG_COST = 0x01;
+
+    /**
+     * 数据经过压缩
+     */
+    public static final byte FLAG_COMPRESSED = 0x02;
+
+    private static final int CODEC_OFFSET = 1;
+    private static final int FLAGS_OFFSET = 2;
+    private static final int EXPIRE_OFFSET = 3;
+
+    /**
+     * Deflater和Inflater持有堆外内存, 每个线程复用一个, 避免每次压缩都重新分配
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private CacheEnvelope() {
+    }
+
+    public static byte[] wrap(CacheCodec codec, Object value, long logicalExpireAt) {
+        return wrap(codec, value, logicalExpireAt, -1);
+    }
+
+    /**
+     * @param costMillis 重建耗时, 小于0时不写入
+     */
+    public static byte[] wrap(CacheCodec codec, Object value, long logicalExpireAt, int costMillis) {
+        byte[] payload = codec.encode(value);
+        int offset = costMillis < 0 ? HEADER_LENGTH : HEADER_LENGTH + 4;
+        byte[] bytes = new byte[offset + payload.length];
+        bytes[0] = MAGIC;
+        bytes[CODEC_OFFSET] = codec.id();
+        bytes[FLAGS_OFFSET] = costMillis < 0 ? 0 : FLAG_COST;
+        writeLong(bytes, EXPIRE_OFFSET, logicalExpireAt);
+        if (costMillis >= 0) {
+            for (int i = 3; i >= 0; i--) {
+                bytes[HEADER_LENGTH + i] = (byte) costMillis;
+                costMillis >>>= 8;
+            }
+        }
+        System.arraycopy(payload, 0, bytes, offset, payload.length);
+        return bytes;
+    }
+
+    /**
+     * 是否是带头部的格式, 否则是迁移前写入的json
+     */
+    public static boolean isEnvelope(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    public static byte codecId(byte[] bytes) {
+        return bytes[CODEC_OFFSET];
+    }
+
+    public static byte flags(byte[] bytes) {
+        return bytes[FLAGS_OFFSET];
+    }
+
+    public static long expireAt(byte[] bytes) {
+        long v = 0;
+        for (int i = EXPIRE_OFFSET; i < EXPIRE_OFFSET + 8; i++) {
+            v = (v << 8) | (bytes[i] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * 重建耗时(毫秒), 没有记录时返回0
+     */
+    public static int cost(byte[] bytes) {
+        if ((flags(bytes) & FLAG_COST) == 0) {
+            return 0;
+        }
+        int v = 0;
+        for (int i = HEADER_LENGTH; i < HEADER_LENGTH + 4; i++) {
+            v = (v << 8) | (bytes[i] & 0xFF);
+        }
+        return v;
+    }
+
+    public static boolean isCompressed(byte[] bytes) {
+        return (flags(bytes) & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * 压缩编码后的数据, 头部和重建耗时保持不变, 判断逻辑过期时仍然不用解压
+     * @param level 压缩级别, Deflater.BEST_SPEED优先速度
+     * @return 压缩后的格式; 已经压缩过或者压缩后没有变小时返回原数组
+     */
+    public static byte[] compress(byte[] bytes, int level) {
+        int offset = payloadOffset(bytes);
+        int length = bytes.length - offset;
+        if (isCompressed(bytes) || length <= 4) {
+            return bytes;
+        }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(bytes, offset, length);
+        deflater.finish();
+        // 输出缓冲区只留原始长度的空间, 放不下说明压缩没有收益
+        byte[] out = new byte[bytes.length];
+        System.arraycopy(bytes, 0, out, 0, offset);
+        int n = deflater.deflate(out, offset + 4, length - 4);
+        if (!deflater.finished()) {
+            return bytes;
+        }
+        out[FLAGS_OFFSET] |= FLAG_COMPRESSED;
+        writeInt(out, offset, length);
+        return Arrays.copyOf(out, offset + 4 + n);
+    }
+
+    /**
+     * 解压出编码后的数据, 没有压缩时复制一份
+     */
+    public static byte[] payload(byte[] bytes) {
+        int offset = payloadOffset(bytes);
+        if (!isCompressed(bytes)) {
+            return Arrays.copyOfRange(bytes, offset, bytes.length);
+        }
+        int length = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            length = (length << 8) | (bytes[i] & 0xFF);
+        }
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(bytes, offset + 4, bytes.length - offset - 4);
+        byte[] out = new byte[length];
+        try {
+            int n = inflater.inflate(out);
+            if (n != length || !inflater.finished()) {
+                throw new IllegalStateException("corrupted compressed cache value, expected " + length + " bytes but got " + n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupted compressed cache value", e);
+        }
+        return out;
+    }
+
+    /**
+     * 编码后的数据的起始位置, 压缩时是原始长度的起始位置
+     */
+    public static int payloadOffset(byte[] bytes) {
+        return (flags(bytes) & FLAG_COST) == 0 ? HEADER_LENGTH : HEADER_LENGTH + 4;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int v) {
+        for (int i = 3; i >= 0; i--) {
+            bytes[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long v) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 缓存指标, 按key前缀和查询策略分别统计, 同时注册到Micrometer
+ * 热路径上只有一次ConcurrentHashMap查找和LongAdder累加, 不分配对象
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-26 10:00
+ */
+
+@Component
+public class CacheMetrics implements MeterBinder {
+
+    public enum Strategy {
+        PASS_THROUGH, LOGICAL_EXPIRE, MUTEX, REFRESH_AHEAD, BATCH, HASH
+    }
+
+    /**
+     * key前缀 -> 按策略下标存放的统计
+     */
+    private final Map<String, Stats[]> stats = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀 -> 压缩统计
+     */
+    private final Map<String, CompressionStats> compression = new ConcurrentHashMap<>();
+
+    /**
+     * 线程池名称 -> 线程池
+     */
+    private final Map<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<>();
+
+    /**
+     * 后台重建任务的统计
+     */
+    private final LongAdder rebuildSubmitted = new LongAdder();
+    private final LongAdder rebuildDeduped = new LongAdder();
+    private final LongAdder rebuildRejected = new LongAdder();
+    private final LongAdder rebuildFailures = new LongAdder();
+    private final LatencyHistogram rebuildLatency = new LatencyHistogram();
+
+    private volatile MeterRegistry registry;
+
+    public Stats stats(String keyPrefix, Strategy strategy) {
+        Stats[] byStrategy = stats.get(keyPrefix);
+        if (byStrategy == null) {
+            byStrategy = stats.computeIfAbsent(keyPrefix, k -> new Stats[Strategy.values().length]);
+        }
+        Stats s = byStrategy[strategy.ordinal()];
+        return s != null ? s : create(keyPrefix, strategy, byStrategy);
+    }
+
+    public CompressionStats compression(String keyPrefix) {
+        CompressionStats s = compression.get(keyPrefix);
+        return s != null ? s : createCompression(keyPrefix);
+    }
+
+    public void rebuildSubmitted() {
+        rebuildSubmitted.increment();
+    }
+
+    public void rebuildDeduped() {
+        rebuildDeduped.increment();
+    }
+
+    public void rebuildRejected() {
+        rebuildRejected.increment();
+    }
+
+    public void rebuildFailed() {
+        rebuildFailures.increment();
+    }
+
+    public void rebuildLatency(long nanos) {
+        rebuildLatency.record(nanos);
+    }
+
+    /**
+     * 监控线程池的队列长度和活跃线程数
+     */
+    public synchronized void registerExecutor(String name, ThreadPoolExecutor executor) {
+        executors.put(name, executor);
+        if (registry != null) {
+            bindExecutor(registry, name, executor);
+        }
+    }
+
+    @Override
+    public synchronized void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+        for (Stats[] byStrategy : stats.values()) {
+            for (Stats s : byStrategy) {
+                if (s != null) {
+                    bindStats(registry, s);
+                }
+            }
+        }
+        compression.values().forEach(s -> bindCompression(registry, s));
+        executors.forEach((name, executor) -> bindExecutor(registry, name, executor));
+        bindRebuild(registry, "submitted", rebuildSubmitted);
+        bindRebuild(registry, "deduped", rebuildDeduped);
+        bindRebuild(registry, "rejected", rebuildRejected);
+        bindRebuild(registry, "failed", rebuildFailures);
+        bindHistogram(registry, "cache.rebuild.latency", rebuildLatency);
+    }
+
+    /**
+     * 所有统计的汇总, 供运维接口展示
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        List<Map<String, Object>> caches = new ArrayList<>();
+        for (Stats[] byStrategy : stats.values()) {
+            for (Stats s : byStrategy) {
+                if (s != null) {
+                    caches.add(s.snapshot());
+                }
+            }
+        }
+        result.put("caches", caches);
+        List<Map<String, Object>> compressions = new ArrayList<>();
+        compression.values().forEach(s -> compressions.add(s.snapshot()));
+        result.put("compression", compressions);
+        Map<String, Object> pools = new LinkedHashMap<>();
+        executors.forEach((name, executor) -> {
+            Map<String, Object> pool = new LinkedHashMap<>();
+            pool.put("queueSize", executor.getQueue().size());
+            pool.put("activeCount", executor.getActiveCount());
+            pool.put("completedTaskCount", executor.getCompletedTaskCount());
+            pools.put(name, pool);
+        });
+        result.put("executors", pools);
+        Map<String, Object> rebuild = new LinkedHashMap<>();
+        rebuild.put("submitted", rebuildSubmitted.sum());
+        rebuild.put("deduped", rebuildDeduped.sum());
+        rebuild.put("rejected", rebuildRejected.sum());
+        rebuild.put("failed", rebuildFailures.sum());
+        rebuild.put("latency", rebuildLatency.snapshot());
+        result.put("rebuild", rebuild);
+        return result;
+    }
+
+    private synchronized Stats create(String keyPrefix, Strategy strategy, Stats[] byStrategy) {
+        Stats s = byStrategy[strategy.ordinal()];
+        if (s == null) {
+            s = new Stats(keyPrefix, strategy);
+            byStrategy[strategy.ordinal()] = s;
+            if (registry != null) {
+                bindStats(registry, s);
+            }
+        }
+        return s;
+    }
+
+    private synchronized CompressionStats createCompression(String keyPrefix) {
+        CompressionStats s = compression.get(keyPrefix);
+        if (s == null) {
+            s = new CompressionStats(keyPrefix);
+            compression.put(keyPrefix, s);
+            if (registry != null) {
+                bindCompression(registry, s);
+            }
+        }
+        return s;
+    }
+
+    private void bindCompression(MeterRegistry registry, CompressionStats s) {
+        FunctionCounter.builder("cache.compression.bytes", s, st -> st.bytesBefore.sum())
+                .tags("prefix", s.keyPrefix, "stage", "before")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("cache.compression.bytes", s, st -> st.bytesAfter.sum())
+                .tags("prefix", s.keyPrefix, "stage", "after")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("cache.compression.skipped", s, st -> st.skipped.sum())
+                .tags("prefix", s.keyPrefix)
+                .description("低于阈值或者压缩后没有变小的写入次数")
+                .register(registry);
+        Gauge.builder("cache.compression.ratio", s, CompressionStats::ratio)
+                .tags("prefix", s.keyPrefix)
+                .register(registry);
+        bindHistogram(registry, "cache.compression.time", s.compressTime, "prefix", s.keyPrefix, "op", "compress");
+        bindHistogram(registry, "cache.compression.time", s.decompressTime, "prefix", s.keyPrefix, "op", "decompress");
+    }
+
+    private void bindStats(MeterRegistry registry, Stats s) {
+        String prefix = s.keyPrefix;
+        String strategy = s.strategy.name().toLowerCase();
+        bindCounter(registry, s, "local_hit", st -> st.localHits.sum());
+        bindCounter(registry, s, "hit", st -> st.hits.sum());
+        bindCounter(registry, s, "null_hit", st -> st.nullHits.sum());
+        bindCounter(registry, s, "miss", st -> st.misses.sum());
+        bindCounter(registry, s, "bloom_reject", st -> st.bloomRejects.sum());
+        bindCounter(registry, s, "negative_hit", st -> st.negativeHits.sum());
+        bindCounter(registry, s, "stale", st -> st.staleServed.sum());
+        FunctionCounter.builder("cache.lock.retries", s, st -> st.lockRetries.sum())
+                .tags("prefix", prefix, "strategy", strategy)
+                .description("重建缓存时等待互斥锁的重试次数")
+                .register(registry);
+        FunctionCounter.builder("cache.bytes.read", s, st -> st.bytesRead.sum())
+                .tags("prefix", prefix, "strategy", strategy)
+                .description("命中时从redis读取的字节数, 除以hit即为每次请求的字节数")
+                .baseUnit("bytes")
+                .register(registry);
+        bindHistogram(registry, "cache.db.load", s.dbLoad, "prefix", prefix, "strategy", strategy);
+        bindHistogram(registry, "cache.lock.wait", s.lockWait, "prefix", prefix, "strategy", strategy);
+    }
+
+    private void bindCounter(MeterRegistry registry, Stats s, String result, ToDoubleFunction<Stats> f) {
+        FunctionCounter.builder("cache.requests", s, f)
+                .tags("prefix", s.keyPrefix, "strategy", s.strategy.name().toLowerCase(), "result", result)
+                .register(registry);
+    }
+
+    private void bindHistogram(MeterRegistry registry, String name, LatencyHistogram histogram, String... tags) {
+        FunctionTimer.builder(name, histogram, LatencyHistogram::count, LatencyHistogram::totalNanos, TimeUnit.NANOSECONDS)
+                .tags(tags)
+                .register(registry);
+        TimeGauge.builder(name + ".max", histogram, TimeUnit.NANOSECONDS, LatencyHistogram::maxNanos)
+                .tags(tags)
+                .register(registry);
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            String[] quantileTags = Arrays.copyOf(tags, tags.length + 2);
+            quantileTags[tags.length] = "quantile";
+            quantileTags[tags.length + 1] = String.valueOf(quantile);
+            TimeGauge.builder(name + ".percentile", histogram, TimeUnit.NANOSECONDS, h -> h.percentile(quantile))
+                    .tags(quantileTags)
+                    .register(registry);
+        }
+    }
+
+    private void bindRebuild(MeterRegistry registry, String result, LongAdder adder) {
+        FunctionCounter.builder("cache.rebuild.tasks", adder, LongAdder::sum)
+                .tags("result", result)
+                .register(registry);
+    }
+
+    private void bindExecutor(MeterRegistry registry, String name, ThreadPoolExecutor executor) {
+        Gauge.builder("cache.executor.queue", executor, e -> e.getQueue().size())
+                .tags("name", name)
+                .register(registry);
+        Gauge.builder("cache.executor.active", executor, ThreadPoolExecutor::getActiveCount)
+                .tags("name", name)
+                .register(registry);
+    }
+
+    /**
+     * 一个key前缀的压缩统计, 用来判断压缩在这个前缀上是否划算
+     */
+    public static class CompressionStats {
+        private final String keyPrefix;
+
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder bytesBefore = new LongAdder();
+        private final LongAdder bytesAfter = new LongAdder();
+        private final LatencyHistogram compressTime = new LatencyHistogram();
+        private final LatencyHistogram decompressTime = new LatencyHistogram();
+
+        CompressionStats(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        public void skipped() {
+            skipped.increment();
+        }
+
+        /**
+         * 记录一次压缩, 压缩后没有变小时after等于before
+         */
+        public void compressed(long before, long after, long nanos) {
+            if (after >= before) {
+                skipped.increment();
+            }
+            bytesBefore.add(before);
+            bytesAfter.add(after);
+            compressTime.record(nanos);
+        }
+
+        public void decompressed(long nanos) {
+            decompressTime.record(nanos);
+        }
+
+        /**
+         * 压缩后与压缩前的字节数之比, 越小越好
+         */
+        double ratio() {
+            long before = bytesBefore.sum();
+            return before == 0 ? 1 : (double) bytesAfter.sum() / before;
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("prefix", keyPrefix);
+            map.put("skipped", skipped.sum());
+            map.put("bytesBefore", bytesBefore.sum());
+            map.put("bytesAfter", bytesAfter.sum());
+            map.put("ratio", ratio());
+            map.put("compressTime", compressTime.snapshot());
+            map.put("decompressTime", decompressTime.snapshot());
+            return map;
+        }
+    }
+
+    /**
+     * 一个key前缀在一种查询策略下的统计
+     */
+    public static class Stats {
+        private final String keyPrefix;
+        private final Strategy strategy;
+
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder nullHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder bloomRejects = new LongAdder();
+        private final LongAdder negativeHits = new LongAdder();
+        private final LongAdder staleServed = new LongAdder();
+        private final LongAdder lockRetries = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LatencyHistogram dbLoad = new LatencyHistogram();
+        private final LatencyHistogram lockWait = new LatencyHistogram();
+
+        Stats(String keyPrefix, Strategy strategy) {
+            this.keyPrefix = keyPrefix;
+            this.strategy = strategy;
+        }
+
+        public void localHit() {
+            localHits.increment();
+        }
+
+        public void hit() {
+            hits.increment();
+        }
+
+        public void nullHit() {
+            nullHits.increment();
+        }
+
+        public void miss() {
+            misses.increment();
+        }
+
+        public void bloomReject() {
+            bloomRejects.increment();
+        }
+
+        public void negativeHit() {
+            negativeHits.increment();
+        }
+
+        public void staleServed() {
+            staleServed.increment();
+        }
+
+        public void lockRetry() {
+            lockRetries.increment();
+        }
+
+        public void bytesRead(long bytes) {
+            bytesRead.add(bytes);
+        }
+
+        public void dbLoad(long nanos) {
+            dbLoad.record(nanos);
+        }
+
+        public void lockWait(long nanos) {
+            lockWait.record(nanos);
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("prefix", keyPrefix);
+            map.put("strategy", strategy.name().toLowerCase());
+            map.put("localHits", localHits.sum());
+            map.put("hits", hits.sum());
+            map.put("nullHits", nullHits.sum());
+            map.put("misses", misses.sum());
+            map.put("bloomRejects", bloomRejects.sum());
+            map.put("negativeHits", negativeHits.sum());
+            map.put("staleServed", staleServed.sum());
+            map.put("lockRetries", lockRetries.sum());
+            long hitCount = hits.sum();
+            map.put("bytesRead", bytesRead.sum());
+            map.put("bytesPerHit", hitCount == 0 ? 0 : bytesRead.sum() / hitCount);
+            map.put("dbLoad", dbLoad.snapshot());
+            map.put("lockWait", lockWait.snapshot());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台重建缓存的线程池, 所有逻辑过期/提前刷新的重建都提交到这里
+ * 1. 同一个key在本节点同时只有一个重建任务, 重复提交直接忽略
+ * 2. 等待的任务有上限, 超出后拒绝, 调用方继续返回旧值
+ * 3. 队列按key的热度排序, 热点key先重建
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-27 09:40
+ */
+
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private final CacheProperties.Rebuild conf;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final CacheMetrics cacheMetrics;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 排队或执行中的key
+     */
+    private final ConcurrentHashMap<String, Boolean> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 排队中的任务数, PriorityBlockingQueue本身没有容量限制
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * 热度相同时按提交顺序执行
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    public CacheRebuildExecutor(CacheProperties cacheProperties, HotKeyDetector hotKeyDetector, CacheMetrics cacheMetrics) {
+        this.conf = cacheProperties.getRebuild();
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheMetrics = cacheMetrics;
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(conf.getThreads(), conf.getThreads(), 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        cacheMetrics.registerExecutor("cache-rebuild", executor);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key, 用于去重和计算热度
+     * @param task 重建逻辑, 抛出的异常会被记录
+     * @return 是否提交成功, 同一个key已经在重建或队列已满时返回false
+     */
+    public boolean submit(String key, Runnable task) {
+        // 1. 本节点同一个key只保留一个任务
+        if (inFlight.putIfAbsent(key, Boolean.TRUE) != null) {
+            cacheMetrics.rebuildDeduped();
+            return false;
+        }
+        // 2. 队列已满, 拒绝
+        if (queued.incrementAndGet() > conf.getQueueCapacity()) {
+            queued.decrementAndGet();
+            inFlight.remove(key);
+            cacheMetrics.rebuildRejected();
+            log.warn("缓存重建队列已满, 放弃重建: {}", key);
+            return false;
+        }
+        try {
+            executor.execute(new RebuildTask(key, task, hotKeyDetector.estimate(key), sequence.incrementAndGet()));
+        } catch (RejectedExecutionException e) {
+            // 已经关闭
+            queued.decrementAndGet();
+            inFlight.remove(key);
+            cacheMetrics.rebuildRejected();
+            return false;
+        }
+        cacheMetrics.rebuildSubmitted();
+        return true;
+    }
+
+    public boolean isInFlight(String key) {
+        return inFlight.containsKey(key);
+    }
+
+    /**
+     * 停止接收新任务, 等待已提交的任务执行完
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(conf.getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("缓存重建任务未在{}内完成, 剩余{}个任务被丢弃", conf.getShutdownTimeout(),
+                        executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final Runnable task;
+        private final long hotness;
+        private final long seq;
+
+        RebuildTask(String key, Runnable task, long hotness, long seq) {
+            this.key = key;
+            this.task = task;
+            this.hotness = hotness;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Exception e) {
+                cacheMetrics.rebuildFailed();
+                log.error("缓存重建失败, key: {}", key, e);
+            } finally {
+                cacheMetrics.rebuildLatency(System.nanoTime() - start);
+                inFlight.remove(key);
+            }
+        }
+
+        @Override
+        public int compareTo(RebuildTask o) {
+            // 热度高的排在前面
+            int c = Long.compare(o.hotness, hotness);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 缓存预热: 流式读取数据库, 按批并行序列化, 通过pipeline写入带过期时间的缓存
+ * 各业务在启动时注册自己的数据源, 可以在启动时自动预热, 也可以通过运维接口触发
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-24 10:30
+ */
+
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    private final CacheClient cacheClient;
+
+    private final CacheProperties.Warmup conf;
+
+    /**
+     * 执行数据源的读取, 单线程, 多个数据源依次预热, 减轻数据库的压力
+     */
+    private final ExecutorService launcher = Executors.newSingleThreadExecutor();
+
+    /**
+     * 并行序列化并写入redis
+     */
+    private final ExecutorService writers;
+
+    /**
+     * 数据源名称 -> 读取数据源并调用write的逻辑
+     */
+    private final Map<String, Consumer<WarmupProgress>> sources = new ConcurrentHashMap<>();
+
+    /**
+     * 数据源名称 -> 最近一次预热的进度
+     */
+    private final Map<String, WarmupProgress> progresses = new ConcurrentHashMap<>();
+
+    public CacheWarmer(CacheClient cacheClient, CacheProperties cacheProperties) {
+        this.cacheClient = cacheClient;
+        this.conf = cacheProperties.getWarmup();
+        this.writers = Executors.newFixedThreadPool(conf.getParallelism());
+    }
+
+    /**
+     * 注册数据源
+     * @param name 数据源名称, 例如shop
+     * @param source 读取数据并调用{@link #write}, 在预热线程中执行
+     */
+    public void register(String name, Consumer<WarmupProgress> source) {
+        sources.put(name, source);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (conf.isOnStartup()) {
+            startAll();
+        }
+    }
+
+    public Map<String, WarmupProgress> startAll() {
+        Map<String, WarmupProgress> started = new LinkedHashMap<>();
+        for (String name : sources.keySet()) {
+            started.put(name, start(name));
+        }
+        return started;
+    }
+
+    /**
+     * 异步开始预热, 同一个数据源正在预热时直接返回它的进度
+     * @return 预热进度, 数据源不存在时返回null
+     */
+    public synchronized WarmupProgress start(String name) {
+        Consumer<WarmupProgress> source = sources.get(name);
+        if (source == null) {
+            return null;
+        }
+        WarmupProgress running = progresses.get(name);
+        if (running != null && running.getStatus() == WarmupProgress.Status.RUNNING) {
+            return running;
+        }
+        WarmupProgress progress = new WarmupProgress(name);
+        progresses.put(name, progress);
+        launcher.execute(() -> {
+            log.info("开始预热缓存: {}", name);
+            try {
+                source.accept(progress);
+                progress.finish(null);
+                log.info("缓存预热完成: {}, 读取{}条, 写入{}条, 失败{}条, 耗时{}ms", name, progress.getRead(),
+                        progress.getWritten(), progress.getFailed(), progress.getEndTime() - progress.getStartTime());
+            } catch (Exception e) {
+                progress.finish(e);
+                log.error("缓存预热失败: {}", name, e);
+            }
+        });
+        return progress;
+    }
+
+    public Map<String, WarmupProgress> progresses() {
+        return Collections.unmodifiableMap(progresses);
+    }
+
+    /**
+     * 把数据按批写入redis, 在调用线程中遍历rows, 所有批次写完后才返回
+     * @param rows 数据, 通常是数据库游标
+     * @param keyMapper 数据 -> 缓存key
+     * @param time 过期时间, 实际过期时间按key前缀的配置随机增加一部分
+     */
+    public <T> void write(WarmupProgress progress, Iterable<T> rows, Function<T, String> keyMapper,
+                          Long time, TimeUnit unit) {
+        int parallelism = conf.getParallelism();
+        Semaphore permits = new Semaphore(parallelism);
+        long started = System.currentTimeMillis();
+        Map<String, T> chunk = new LinkedHashMap<>();
+        try {
+            for (T row : rows) {
+                chunk.put(keyMapper.apply(row), row);
+                if (chunk.size() >= conf.getBatchSize()) {
+                    submit(progress, chunk, permits, started, unit.toMillis(time));
+                    chunk = new LinkedHashMap<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                submit(progress, chunk, permits, started, unit.toMillis(time));
+            }
+            // 等待所有批次写完
+            permits.acquire(parallelism);
+            permits.release(parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("cache warmup interrupted", e);
+        }
+    }
+
+    private <T> void submit(WarmupProgress progress, Map<String, T> chunk, Semaphore permits,
+                            long started, long ttlMillis) throws InterruptedException {
+        progress.addRead(chunk.size());
+        // 1. 限速: 按已读取的条数计算最早可以写入的时间
+        int maxRowsPerSecond = conf.getMaxRowsPerSecond();
+        if (maxRowsPerSecond > 0) {
+            long earliest = started + progress.getRead() * 1000 / maxRowsPerSecond;
+            long wait = earliest - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+        }
+        // 2. 同时进行中的批次不超过parallelism, 避免读得比写得快时占用大量内存
+        permits.acquire();
+        writers.execute(() -> {
+            try {
+                cacheClient.setBatch(chunk, ttlMillis, TimeUnit.MILLISECONDS);
+                progress.addWritten(chunk.size());
+            } catch (Exception e) {
+                progress.addFailed(chunk.size());
+                log.error("缓存预热写入失败: {}, {}条", progress.getName(), chunk.size(), e);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        launcher.shutdownNow();
+        writers.shutdown();
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * 热点key探测: 滑动窗口的Count-Min Sketch统计key的访问次数
+ * 窗口内访问次数超过阈值的key被提升为热点, 降到阈值的一定比例以下时取消
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-23 09:50
+ */
+
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private final CacheProperties.HotKey conf;
+
+    private final int depth;
+    private final int width;
+
+    /**
+     * 每个时间片一个sketch, 下标为 行 * width + 列
+     */
+    private final AtomicIntegerArray[] windows;
+
+    private volatile int current;
+
+    /**
+     * 热点key -> 提升的时间
+     */
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 取消热点时的回调, 用来清理本地副本
+     */
+    private final List<Consumer<String>> demoteListeners = new CopyOnWriteArrayList<>();
+
+    public HotKeyDetector(CacheProperties cacheProperties) {
+        this.conf = cacheProperties.getHotKey();
+        this.depth = conf.getDepth();
+        this.width = conf.getWidth();
+        this.windows = new AtomicIntegerArray[conf.getWindows()];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new AtomicIntegerArray(depth * width);
+        }
+    }
+
+    public void addDemoteListener(Consumer<String> listener) {
+        demoteListeners.add(listener);
+    }
+
+    /**
+     * 记录一次访问
+     * @return key当前是否是热点
+     */
+    public boolean record(String key) {
+        if (!conf.isEnabled()) {
+            return false;
+        }
+        long hash = MurmurHash.hash64(key);
+        AtomicIntegerArray window = windows[current];
+        for (int row = 0; row < depth; row++) {
+            window.incrementAndGet(row * width + column(hash, row));
+        }
+        if (hotKeys.containsKey(key)) {
+            return true;
+        }
+        if (estimate(hash) >= conf.getThreshold()) {
+            hotKeys.put(key, System.currentTimeMillis());
+            log.info("发现热点key: {}", key);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 估算key在整个滑动窗口内的访问次数
+     */
+    public long estimate(String key) {
+        return estimate(MurmurHash.hash64(key));
+    }
+
+    /**
+     * 当前的热点key及其访问次数, 按访问次数倒序
+     */
+    public Map<String, Long> hotKeys() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        for (String key : hotKeys.keySet()) {
+            entries.add(new AbstractMap.SimpleEntry<>(key, estimate(key)));
+        }
+        entries.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * 滑动窗口前进一格: 清空最旧的时间片, 并取消访问量下降的热点
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.window-millis:1000}")
+    public void rotate() {
+        if (!conf.isEnabled()) {
+            return;
+        }
+        int next = (current + 1) % windows.length;
+        AtomicIntegerArray window = windows[next];
+        for (int i = 0; i < window.length(); i++) {
+            window.set(i, 0);
+        }
+        current = next;
+
+        long demoteThreshold = (long) (conf.getThreshold() * conf.getDemoteRatio());
+        for (String key : hotKeys.keySet()) {
+            if (estimate(key) < demoteThreshold) {
+                hotKeys.remove(key);
+                log.info("热点key降级: {}", key);
+                for (Consumer<String> listener : demoteListeners) {
+                    listener.accept(key);
+                }
+            }
+        }
+    }
+
+    private long estimate(long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + column(hash, row);
+            long sum = 0;
+            for (AtomicIntegerArray window : windows) {
+                sum += window.get(index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * 双重哈希计算每一行的列
+     */
+    private int column(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return Math.floorMod(h1 + row * h2, width);
+    }
+}
@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 使用hutool的json编解码, 与迁移前的格式相同
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-19 10:20
+ */
+
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte ID = 1;
+    public static final String NAME = "json";
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> type) {
+        String json = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        // parse可以同时处理对象和数组
+        return JSONUtil.parse(json).toBean(type);
+    }
+}
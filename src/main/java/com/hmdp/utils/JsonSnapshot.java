@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+/**
+ * 预先序列化好的响应体, 不可变, 可以直接写入response
+ * ETag由内容计算, 各节点相同内容的ETag相同
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-30 10:10
+ */
+
+public final class JsonSnapshot {
+
+    private final long version;
+    private final byte[] body;
+    private final String etag;
+
+    public JsonSnapshot(long version, byte[] body) {
+        this.version = version;
+        this.body = body;
+        this.etag = "\"" + Long.toHexString(MurmurHash.hash64(body)) + "\"";
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 响应体, 调用方不要修改
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * 判断客户端缓存的版本是否仍然有效
+     * @param ifNoneMatch 请求头If-None-Match, 可能包含多个ETag
+     */
+    public boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null || ifNoneMatch.isEmpty()) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 耗时直方图, 按2的幂划分桶: 第i个桶记录[2^(i-1), 2^i)纳秒的样本
+ * 记录时只做几次LongAdder累加, 不分配对象, 可以常开; 分位数取所在桶的上界, 误差在2倍以内
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-26 09:30
+ */
+
+public class LatencyHistogram {
+
+    private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[Math.min(Long.SIZE - Long.numberOfLeadingZeros(nanos), buckets.length - 1)].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * 估算分位数(纳秒)
+     * @param quantile 0 ~ 1, 例如0.99
+     */
+    public long percentile(double quantile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min(1L << i, maxNanos());
+            }
+        }
+        return maxNanos();
+    }
+
+    /**
+     * 以毫秒为单位的汇总, 供运维接口展示
+     */
+    public Map<String, Object> snapshot() {
+        long total = count();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", total);
+        map.put("meanMs", total == 0 ? 0 : toMillis(totalNanos() / total));
+        map.put("p50Ms", toMillis(percentile(0.5)));
+        map.put("p90Ms", toMillis(percentile(0.9)));
+        map.put("p99Ms", toMillis(percentile(0.99)));
+        map.put("maxMs", toMillis(maxNanos()));
+        return map;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,256 @@
+package com.hmdp.utils;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * 进程内的负缓存: 记录数据库中确认不存在的id, 命中后不再访问redis
+ * 开放寻址的long集合, 每个条目只占25个字节, 按id分段加锁
+ * 同一个id被反复查询时存活时间翻倍, 用来吸收爬虫对不存在id的反复探测
+ * 无论查询多少次, 条目最多存活到第一次记录之后的maxTtl, 过期后需要重新从redis确认, 错过失效广播时最多不可见maxTtl
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-29 09:50
+ */
+
+public class NegativeCache {
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * 存活时间最多翻倍的次数
+     */
+    private static final int MAX_BACKOFF = 20;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final long baseTtlMillis;
+    private final long maxTtlMillis;
+
+    private final LongSupplier clock;
+
+    /**
+     * @param capacity 最多记录的id个数
+     * @param baseTtl 第一次记录时的存活时间
+     * @param maxTtl 反复查询后存活时间的上限
+     */
+    public NegativeCache(int capacity, Duration baseTtl, Duration maxTtl) {
+        this(capacity, baseTtl, maxTtl, System::currentTimeMillis);
+    }
+
+    NegativeCache(int capacity, Duration baseTtl, Duration maxTtl, LongSupplier clock) {
+        this.clock = clock;
+        this.baseTtlMillis = baseTtl.toMillis();
+        this.maxTtlMillis = Math.max(maxTtl.toMillis(), baseTtlMillis);
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        // 装载因子不超过0.75
+        int slots = Integer.highestOneBit(Math.max(4, perSegment * 4 / 3) - 1) << 1;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(slots, perSegment);
+        }
+    }
+
+    /**
+     * 判断id是否已知不存在, 命中时延长存活时间, 不超过第一次记录之后的maxTtl
+     */
+    public boolean contains(long id) {
+        long h = hash(id);
+        return segmentOf(h).probe(id, h, clock.getAsLong());
+    }
+
+    /**
+     * 记录不存在的id
+     */
+    public void add(long id) {
+        long h = hash(id);
+        segmentOf(h).add(id, h, clock.getAsLong());
+    }
+
+    /**
+     * id对应的数据已经创建, 移除记录
+     */
+    public void remove(long id) {
+        long h = hash(id);
+        segmentOf(h).remove(id, h);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private long ttlAfter(int hits) {
+        return Math.min(baseTtlMillis << Math.min(hits, MAX_BACKOFF), maxTtlMillis);
+    }
+
+    private Segment segmentOf(long h) {
+        return segments[(int) (h >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static long hash(long id) {
+        return id * 0x9E3779B97F4A7C15L;
+    }
+
+    private final class Segment {
+        private final long[] keys;
+        /**
+         * 过期时间, 0表示空槽
+         */
+        private final long[] expireAt;
+        /**
+         * 第一次记录的时间, 存活时间从这里开始计算上限
+         */
+        private final long[] addedAt;
+        /**
+         * 记录之后被查询的次数
+         */
+        private final byte[] hits;
+        private final int mask;
+        private final int maxSize;
+        private int size;
+
+        Segment(int slots, int maxSize) {
+            this.keys = new long[slots];
+            this.expireAt = new long[slots];
+            this.addedAt = new long[slots];
+            this.hits = new byte[slots];
+            this.mask = slots - 1;
+            this.maxSize = maxSize;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized boolean probe(long id, long h, long now) {
+            int i = find(id, h);
+            if (i < 0) {
+                return false;
+            }
+            if (expireAt[i] <= now) {
+                removeAt(i);
+                return false;
+            }
+            // 反复被查询, 存活时间翻倍
+            if (hits[i] < MAX_BACKOFF) {
+                hits[i]++;
+            }
+            extend(i, now);
+            return true;
+        }
+
+        synchronized void add(long id, long h, long now) {
+            int i = find(id, h);
+            if (i >= 0) {
+                if (expireAt[i] <= now) {
+                    // 已经过期, 重新从redis确认过, 保留查询次数, 存活时间上限从现在开始计算
+                    addedAt[i] = now;
+                }
+                extend(i, now);
+                return;
+            }
+            if (size >= maxSize) {
+                purge(now);
+            }
+            if (size >= maxSize) {
+                // 仍然是满的, 说明都是有效记录, 全部丢弃重新开始, 最坏情况只是多访问几次redis
+                clear();
+            }
+            i = slot(h);
+            while (expireAt[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = id;
+            expireAt[i] = now + baseTtlMillis;
+            addedAt[i] = now;
+            hits[i] = 0;
+            size++;
+        }
+
+        /**
+         * 按查询次数延长存活时间, 不超过第一次记录之后的maxTtl
+         */
+        private void extend(int i, long now) {
+            expireAt[i] = Math.min(Math.max(expireAt[i], now + ttlAfter(hits[i])), addedAt[i] + maxTtlMillis);
+        }
+
+        synchronized void remove(long id, long h) {
+            int i = find(id, h);
+            if (i >= 0) {
+                removeAt(i);
+            }
+        }
+
+        private int find(long id, long h) {
+            for (int i = slot(h); expireAt[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int slot(long h) {
+            return (int) (h >>> 32) & mask;
+        }
+
+        /**
+         * 线性探测的删除: 把后面探测链上的条目前移, 不留墓碑
+         */
+        private void removeAt(int i) {
+            int j = i;
+            while (true) {
+                expireAt[i] = 0;
+                int home;
+                do {
+                    j = (j + 1) & mask;
+                    if (expireAt[j] == 0) {
+                        size--;
+                        return;
+                    }
+                    home = slot(hash(keys[j]));
+                    // home在(i, j]之间时条目j不能前移
+                } while (i <= j ? (i < home && home <= j) : (i < home || home <= j));
+                keys[i] = keys[j];
+                expireAt[i] = expireAt[j];
+                addedAt[i] = addedAt[j];
+                hits[i] = hits[j];
+                i = j;
+            }
+        }
+
+        /**
+         * 清理过期的记录, 有效的记录重新插入
+         */
+        private void purge(long now) {
+            long[] oldKeys = keys.clone();
+            long[] oldExpireAt = expireAt.clone();
+            long[] oldAddedAt = addedAt.clone();
+            byte[] oldHits = hits.clone();
+            clear();
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldExpireAt[k] > now) {
+                    int i = slot(hash(oldKeys[k]));
+                    while (expireAt[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[k];
+                    expireAt[i] = oldExpireAt[k];
+                    addedAt[i] = oldAddedAt[k];
+                    hits[i] = oldHits[k];
+                    size++;
+                }
+            }
+        }
+
+        private void clear() {
+            Arrays.fill(expireAt, 0);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 限流, 加在返回Result的controller方法上, 超出限制时直接返回失败, 状态码429
+ * 可以重复添加, 按声明顺序依次判断
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-07 09:40
+ */
+
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(RateLimits.class)
+public @interface RateLimit {
+
+    /**
+     * 规则名, 对应hmdp.rate-limit.rules中的配置
+     */
+    String value();
+
+    /**
+     * 限流维度
+     */
+    Scope scope() default Scope.GLOBAL;
+
+    /**
+     * SpEL表达式, 按方法参数细分令牌桶, 例如 #voucherId
+     */
+    String key() default "";
+
+    enum Scope {
+        /**
+         * 所有请求共用
+         */
+        GLOBAL,
+        /**
+         * 每个登录用户一个令牌桶, 没有登录时按ip
+         */
+        USER,
+        /**
+         * 每个客户端ip一个令牌桶
+         */
+        IP
+    }
+}
@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 处理@RateLimit: 在controller方法执行之前取令牌, 取不到时返回429和失败的Result, 不再执行加锁、查询数据库等操作
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-07 10:30
+ */
+
+@Aspect
+@Component
+public class RateLimitAspect {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final RedisRateLimiter rateLimiter;
+
+    private final RateLimitProperties properties;
+
+    private final SpelExpressionParser parser = new SpelExpressionParser();
+
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    /**
+     * 解析过的SpEL表达式
+     */
+    private final ConcurrentHashMap<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    public RateLimitAspect(RedisRateLimiter rateLimiter, RateLimitProperties properties) {
+        this.rateLimiter = rateLimiter;
+        this.properties = properties;
+    }
+
+    @Around("@annotation(com.hmdp.utils.RateLimit) || @annotation(com.hmdp.utils.RateLimits)")
+    public Object around(ProceedingJoinPoint pjp) throws Throwable {
+        Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+        RateLimit[] limits = method.getAnnotationsByType(RateLimit.class);
+        String[] keys = new String[limits.length];
+        for (int i = 0; i < limits.length; i++) {
+            keys[i] = keyOf(limits[i], method, pjp.getArgs());
+            if (!rateLimiter.tryAcquire(limits[i].value(), keys[i])) {
+                // 归还前面的规则已经取到的令牌, 避免被拒绝的请求消耗其他规则的配额
+                for (int j = 0; j < i; j++) {
+                    rateLimiter.release(limits[j].value(), keys[j]);
+                }
+                return reject(method);
+            }
+        }
+        return pjp.proceed();
+    }
+
+    /**
+     * 维度的值和SpEL的值拼成令牌桶的key
+     */
+    private String keyOf(RateLimit limit, Method method, Object[] args) {
+        StringBuilder key = new StringBuilder();
+        switch (limit.scope()) {
+            case USER:
+                UserDTO user = UserHolder.getUser();
+                key.append(user != null ? "user:" + user.getId() : "ip:" + clientIp());
+                break;
+            case IP:
+                key.append("ip:").append(clientIp());
+                break;
+            default:
+                break;
+        }
+        if (!limit.key().isEmpty()) {
+            Expression expression = expressions.computeIfAbsent(limit.key(), parser::parseExpression);
+            Object value = expression.getValue(
+                    new MethodBasedEvaluationContext(null, method, args, parameterNameDiscoverer));
+            if (key.length() > 0) {
+                key.append(':');
+            }
+            key.append(value);
+        }
+        return key.toString();
+    }
+
+    private String clientIp() {
+        HttpServletRequest request = currentRequest();
+        if (request == null) {
+            return "unknown";
+        }
+        if (StringUtils.hasText(properties.getIpHeader())) {
+            String ip = request.getHeader(properties.getIpHeader());
+            if (StringUtils.hasText(ip)) {
+                // 可能是逗号分隔的代理链, 第一个是客户端
+                int comma = ip.indexOf(',');
+                return (comma < 0 ? ip : ip.substring(0, comma)).trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    private Object reject(Method method) {
+        if (!Result.class.isAssignableFrom(method.getReturnType())) {
+            throw new IllegalStateException("@RateLimit requires a method returning Result: " + method);
+        }
+        ServletRequestAttributes attributes = (ServletRequestAttributes) RequestContextHolder.getRequestAttributes();
+        if (attributes != null && attributes.getResponse() != null) {
+            attributes.getResponse().setStatus(TOO_MANY_REQUESTS);
+        }
+        return Result.fail("请求太频繁, 请稍后再试");
+    }
+
+    private static HttpServletRequest currentRequest() {
+        ServletRequestAttributes attributes = (ServletRequestAttributes) RequestContextHolder.getRequestAttributes();
+        return attributes == null ? null : attributes.getRequest();
+    }
+}
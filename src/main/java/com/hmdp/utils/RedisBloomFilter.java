@@ -0,0 +1,261 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 布隆过滤器, 判断id是否可能存在, 用来拦截缓存穿透
+ * 位数组放在进程内, 同时镜像到redis的bitmap, 各节点通过发布订阅同步新增的id
+ * 本地还没有加载成功时一律放行, 宁可多查一次缓存也不能把存在的id当成不存在
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-17 14:10
+ */
+
+@Slf4j
+public class RedisBloomFilter {
+
+    private static final String MESSAGE_ADD = "add";
+    private static final String MESSAGE_RELOAD = "reload";
+
+    private final String redisKey;
+    private final byte[] rawKey;
+    /**
+     * 构建bitmap时的参数, 与当前参数不一致的bitmap不能使用
+     */
+    private final String metaKey;
+    private final String meta;
+    private final long numBits;
+    private final int numHashes;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本地位数组, 重建时整体替换
+     */
+    private volatile AtomicLongArray bits;
+
+    /**
+     * 是否已经从redis加载或重建完成
+     */
+    private volatile boolean ready;
+
+    /**
+     * @param redisKey 镜像的bitmap在redis中的key
+     * @param expectedInsertions 预计的元素个数
+     * @param fpp 期望的误判率
+     */
+    public RedisBloomFilter(String redisKey, long expectedInsertions, double fpp,
+                            StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("illegal bloom filter size: " + expectedInsertions + ", " + fpp);
+        }
+        this.redisKey = redisKey;
+        this.rawKey = redisKey.getBytes(StandardCharsets.UTF_8);
+        // m = -n * ln(p) / (ln2)^2, k = m / n * ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // redis的bitmap最大2^32位
+        this.numBits = Math.min(Math.max(m, 64), 1L << 32);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.metaKey = redisKey + ":meta";
+        this.meta = numBits + ":" + numHashes;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.bits = new AtomicLongArray(wordCount());
+
+        listenerContainer.addMessageListener((message, pattern) ->
+                onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.BLOOM_FILTER_CHANNEL));
+    }
+
+    /**
+     * 判断id是否可能存在, 返回false时一定不存在; 没有加载完成时返回true
+     */
+    public boolean mightContain(long id) {
+        if (!ready) {
+            return true;
+        }
+        AtomicLongArray current = bits;
+        long[] hashes = hash(id);
+        for (int i = 0; i < numHashes; i++) {
+            long index = index(hashes, i);
+            if ((current.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增id, 同时写入redis并通知其他节点
+     */
+    public void put(long id) {
+        putAll(Collections.singletonList(id));
+    }
+
+    public void putAll(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        for (Long id : ids) {
+            setLocal(bits, id);
+        }
+        setRemote(ids);
+        for (Long id : ids) {
+            stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_FILTER_CHANNEL, redisKey + "|" + MESSAGE_ADD + "|" + id);
+        }
+    }
+
+    /**
+     * 从redis加载位数组
+     * @return redis中是否存在按当前参数构建的过滤器
+     */
+    public boolean loadFromRedis() {
+        String stored = stringRedisTemplate.opsForValue().get(metaKey);
+        if (!meta.equals(stored)) {
+            if (stored != null) {
+                log.warn("布隆过滤器{}的参数已变化, redis中: {}, 当前: {}, 需要重建", redisKey, stored, meta);
+            }
+            return false;
+        }
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (bytes == null) {
+            return false;
+        }
+        AtomicLongArray loaded = new AtomicLongArray(wordCount());
+        // redis中第i位是第i/8个字节的从高到低的第i%8位
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                if ((b & (0x80 >>> j)) != 0) {
+                    long index = ((long) i << 3) + j;
+                    if (index < numBits) {
+                        loaded.set((int) (index >>> 6), loaded.get((int) (index >>> 6)) | (1L << index));
+                    }
+                }
+            }
+        }
+        bits = loaded;
+        ready = true;
+        return true;
+    }
+
+    /**
+     * 根据数据库全量重建, 先写入临时key再rename, 完成后通知其他节点重新加载
+     * @param nextBatch 根据上一批最大的id查询下一批id, 返回空集合代表结束
+     */
+    public void rebuild(Function<Long, List<Long>> nextBatch) {
+        AtomicLongArray rebuilt = new AtomicLongArray(wordCount());
+        long count = 0;
+        long lastId = 0;
+        List<Long> ids;
+        while (!(ids = nextBatch.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                setLocal(rebuilt, id);
+                lastId = Math.max(lastId, id);
+            }
+            count += ids.size();
+        }
+        // 转换为redis的bitmap格式
+        byte[] bytes = new byte[(int) ((numBits + 7) >>> 3)];
+        for (long index = 0; index < numBits; index++) {
+            if ((rebuilt.get((int) (index >>> 6)) & (1L << index)) != 0) {
+                bytes[(int) (index >>> 3)] |= (byte) (0x80 >>> (index & 7));
+            }
+        }
+        byte[] tmpKey = (redisKey + ":tmp").getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, bytes, Expiration.persistent(), RedisStringCommands.SetOption.upsert());
+            connection.rename(tmpKey, rawKey);
+            return null;
+        });
+        // bitmap替换之后再写入参数, 其他节点不会用新参数读取旧的bitmap
+        stringRedisTemplate.opsForValue().set(metaKey, meta);
+        bits = rebuilt;
+        ready = true;
+        // 重建期间提交的id可能在rename时被覆盖, 再补读一次
+        while (!(ids = nextBatch.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                setLocal(rebuilt, id);
+                lastId = Math.max(lastId, id);
+            }
+            setRemote(ids);
+            count += ids.size();
+        }
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_FILTER_CHANNEL, redisKey + "|" + MESSAGE_RELOAD);
+        log.info("布隆过滤器{}重建完成, 元素个数: {}, 位数: {}, 哈希函数个数: {}", redisKey, count, numBits, numHashes);
+    }
+
+    private void onMessage(String body) {
+        String[] parts = body.split("\\|");
+        if (!redisKey.equals(parts[0])) {
+            return;
+        }
+        if (MESSAGE_ADD.equals(parts[1])) {
+            setLocal(bits, Long.parseLong(parts[2]));
+        } else if (MESSAGE_RELOAD.equals(parts[1])) {
+            loadFromRedis();
+        }
+    }
+
+    private void setLocal(AtomicLongArray target, long id) {
+        long[] hashes = hash(id);
+        for (int i = 0; i < numHashes; i++) {
+            long index = index(hashes, i);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            while (((old = target.get(word)) & mask) == 0 && !target.compareAndSet(word, old, old | mask)) {
+                // CAS失败则重试
+            }
+        }
+    }
+
+    private void setRemote(Collection<Long> ids) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : ids) {
+                setRemote(connection, id);
+            }
+            return null;
+        });
+    }
+
+    private void setRemote(RedisConnection connection, long id) {
+        long[] hashes = hash(id);
+        for (int i = 0; i < numHashes; i++) {
+            connection.setBit(rawKey, index(hashes, i), true);
+        }
+    }
+
+    private long[] hash(long id) {
+        return MurmurHash.hash128(ByteBuffer.allocate(Long.BYTES).putLong(id).array());
+    }
+
+    /**
+     * 双重哈希: h1 + i * h2 模拟第i个哈希函数
+     */
+    private long index(long[] hashes, int i) {
+        return Math.floorMod(hashes[0] + i * hashes[1], numBits);
+    }
+
+    private int wordCount() {
+        return (int) ((numBits + 63) >>> 6);
+    }
+}
@@ -10,11 +10,49 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shop-hash:";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 30L;
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shop-voucher:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop-type:version";
+    public static final String CACHE_SHOP_TYPE_CHANNEL = "cache:shop-type";
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_VOUCHER_KEY = "bloom:voucher";
+    public static final String BLOOM_FILTER_CHANNEL = "cache:bloom";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+    public static final String LOCK_OUTBOX_KEY = "lock:outbox";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final String LOCK_CACHE_KEY = "lock:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final Long LOCK_SHOP_RETRY_INTERVAL = 10L;
+    public static final String LOCK_REFRESH_KEY = "lock:refresh:";
+    public static final String LOCK_SECKILL_REBALANCE_KEY = "lock:seckill:rebalance:";
+
+    public static final String RATE_LIMIT_KEY = "limit:";
+
+    public static final String ID_SEQUENCE_KEY = "icr:";
+    public static final String ID_NODE_KEY = "icr:node";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_TRANSFER_KEY = "seckill:transfer:";
+    public static final String SECKILL_TRANSFER_DONE_KEY = "seckill:transfer-done:";
+    public static final Long SECKILL_TRANSFER_DONE_TTL = 86400L;
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream.orders.dead";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:sold-out";
+    public static final String SECKILL_STOCK_EPOCH_KEY = "seckill:stock-epoch";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_VOUCHER_VERSION_KEY = "seckill:voucher:version";
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
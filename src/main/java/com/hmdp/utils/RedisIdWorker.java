@@ -0,0 +1,232 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 全局唯一id: 1位符号位 + 31位时间戳(秒) + 6位节点号 + 26位当天的序列号
+ * 序列号按 前缀 + 节点号 + 日期 在redis中自增, 每次预留一个号段, 号段内在本地无锁分配
+ * 号段用到一定比例时在后台预取下一个号段, 正常情况下生成id不访问redis
+ * 不同节点分到相同的节点号时, 号段仍然由同一个key分配, 不会重复
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-02 09:30
+ */
+
+@Slf4j
+@Component
+public class RedisIdWorker {
+
+    /**
+     * 开始时间戳 2022-01-01 00:00:00 UTC
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    private static final int NODE_BITS = 6;
+    private static final int SEQUENCE_BITS = 26;
+    public static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    public static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final int blockSize;
+
+    /**
+     * 号段内的第几个序列号触发预取
+     */
+    private final int prefetchAt;
+
+    private final long nodeId;
+
+    /**
+     * 当前时间的毫秒数, 测试时可以替换
+     */
+    private final LongSupplier clock;
+
+    /**
+     * 时区偏移的秒数, 按启动时的时区计算日期
+     */
+    private final long zoneOffsetSeconds;
+
+    private final ConcurrentHashMap<String, Sequence> sequences = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties properties) {
+        this(stringRedisTemplate, properties, System::currentTimeMillis);
+    }
+
+    RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties properties, LongSupplier clock) {
+        if (properties.getBlockSize() <= 0 || properties.getBlockSize() > MAX_SEQUENCE) {
+            throw new IllegalArgumentException("illegal id block size: " + properties.getBlockSize());
+        }
+        if (properties.getNodeId() > MAX_NODE_ID) {
+            throw new IllegalArgumentException("id worker node id must be less than " + (MAX_NODE_ID + 1));
+        }
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.blockSize = properties.getBlockSize();
+        this.prefetchAt = Math.max(0, Math.min(blockSize - 1,
+                (int) (blockSize * (1 - properties.getPrefetchRatio()))));
+        this.clock = clock;
+        this.zoneOffsetSeconds = ZoneId.systemDefault().getRules()
+                .getOffset(Instant.ofEpochMilli(clock.getAsLong())).getTotalSeconds();
+        this.nodeId = properties.getNodeId() >= 0 ? properties.getNodeId() : allocateNodeId();
+        log.info("id生成器节点号: {}", nodeId);
+    }
+
+    /**
+     * 生成id
+     * @param keyPrefix 业务前缀, 每个前缀的序列号单独计数
+     */
+    public long nextId(String keyPrefix) {
+        Sequence sequence = sequences.get(keyPrefix);
+        if (sequence == null) {
+            sequence = sequences.computeIfAbsent(keyPrefix, Sequence::new);
+        }
+        while (true) {
+            // 1. 生成时间戳和日期
+            long epochSecond = Math.floorDiv(clock.getAsLong(), 1000);
+            long day = Math.floorDiv(epochSecond + zoneOffsetSeconds, 86400);
+            // 2. 从当前号段取序列号, 号段属于其他日期或已经用完时切换号段
+            Block block = sequence.current;
+            if (block.day == day) {
+                long offset = block.cursor.getAndIncrement();
+                if (offset < blockSize) {
+                    if (offset == prefetchAt) {
+                        sequence.prefetch(day);
+                    }
+                    // 3. 拼接并返回
+                    return (epochSecond - BEGIN_TIMESTAMP) << (NODE_BITS + SEQUENCE_BITS)
+                            | nodeId << SEQUENCE_BITS
+                            | (block.start + offset);
+                }
+            }
+            sequence.advance(block, day);
+        }
+    }
+
+    long nodeId() {
+        return nodeId;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetcher.shutdownNow();
+    }
+
+    private long allocateNodeId() {
+        Long count = stringRedisTemplate.opsForValue().increment(RedisConstants.ID_NODE_KEY);
+        if (count == null) {
+            throw new IllegalStateException("failed to allocate id worker node id");
+        }
+        return count & MAX_NODE_ID;
+    }
+
+    /**
+     * 从redis预留一个号段, 号段为[start, start + blockSize)
+     */
+    private Block reserve(String keyPrefix, long day) {
+        String date = LocalDate.ofEpochDay(day).format(DAY_FORMATTER);
+        String key = RedisConstants.ID_SEQUENCE_KEY + keyPrefix + ":" + nodeId + ":" + date;
+        Long end = stringRedisTemplate.opsForValue().increment(key, blockSize);
+        if (end == null) {
+            throw new IllegalStateException("failed to reserve id block: " + key);
+        }
+        if (end == blockSize) {
+            // 当天第一个号段, 过了当天就不再使用
+            stringRedisTemplate.expire(key, 2, TimeUnit.DAYS);
+        }
+        if (end - 1 > MAX_SEQUENCE) {
+            throw new IllegalStateException("id sequence exhausted: " + key);
+        }
+        return new Block(day, end - blockSize);
+    }
+
+    /**
+     * 某个前缀的序列号: 正在使用的号段和预取的下一个号段
+     */
+    private final class Sequence {
+        private final String keyPrefix;
+
+        private volatile Block current = Block.EMPTY;
+
+        /**
+         * 预取的下一个号段, 由this保护
+         */
+        private CompletableFuture<Block> next;
+
+        Sequence(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        synchronized void prefetch(long day) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> reserve(keyPrefix, day), prefetcher);
+            }
+        }
+
+        /**
+         * 切换号段, 只有第一个发现号段用完的线程执行, 其他线程等待后重新读取current
+         */
+        synchronized void advance(Block exhausted, long day) {
+            if (current != exhausted) {
+                return;
+            }
+            Block block = null;
+            if (next != null) {
+                try {
+                    block = next.join();
+                } catch (CompletionException e) {
+                    log.warn("预取{}的号段失败, 重新获取", keyPrefix, e.getCause());
+                }
+                next = null;
+            }
+            // 没有预取或者预取的号段属于前一天, 同步获取
+            if (block == null || block.day != day) {
+                block = reserve(keyPrefix, day);
+            }
+            current = block;
+        }
+    }
+
+    /**
+     * 号段: 属于哪一天, 第一个序列号, 已经分配的个数
+     */
+    private static final class Block {
+        static final Block EMPTY = new Block(Long.MIN_VALUE, 0);
+
+        final long day;
+        final long start;
+        final AtomicLong cursor = new AtomicLong();
+
+        Block(long day, long start) {
+            this.day = day;
+            this.start = start;
+        }
+    }
+}
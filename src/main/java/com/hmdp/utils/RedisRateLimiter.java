@@ -0,0 +1,192 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RateLimitProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分布式令牌桶限流: 令牌桶在redis中, 每个节点一次取出batch个令牌放在本地, 用完再取
+ * redis中没有令牌时, 在生成下一个令牌之前本地直接拒绝, 不再访问redis
+ * 大部分请求只需要一次本地CAS就能得到结果
+ * redis不可用时在failOpen时间内直接放行, 不再访问redis, 避免每个请求都等到超时
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-07 10:00
+ */
+
+@Slf4j
+@Component
+public class RedisRateLimiter {
+
+    private static final DefaultRedisScript<Long> TOKEN_BUCKET_SCRIPT;
+    static {
+        TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        TOKEN_BUCKET_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        TOKEN_BUCKET_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RateLimitProperties properties;
+
+    /**
+     * 令牌桶的key -> 本地的令牌
+     */
+    private final ConcurrentHashMap<String, LocalBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * 访问redis失败后, 在这个时间之前所有令牌桶直接放行
+     */
+    private volatile long failOpenUntil;
+
+    public RedisRateLimiter(StringRedisTemplate stringRedisTemplate, RateLimitProperties properties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+    }
+
+    /**
+     * 取一个令牌
+     * @param rule 规则名
+     * @param key 细分的key, 例如用户id、优惠券id, 为空时整个规则共用一个令牌桶
+     * @return 是否放行, 没有配置的规则直接放行
+     */
+    public boolean tryAcquire(String rule, String key) {
+        if (!properties.isEnabled()) {
+            return true;
+        }
+        RateLimitProperties.Rule conf = ruleOf(rule, key);
+        if (conf == null) {
+            return true;
+        }
+        String bucketKey = bucketKey(rule, key);
+        LocalBucket bucket = buckets.get(bucketKey);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(bucketKey, k -> new LocalBucket());
+        }
+        long now = System.currentTimeMillis();
+        bucket.lastAccess = now;
+        // 1. 本地还有令牌
+        if (bucket.take()) {
+            return true;
+        }
+        // 2. redis中也没有令牌, 还没到生成下一个令牌的时间
+        if (now < bucket.denyUntil) {
+            return false;
+        }
+        // 3. redis刚刚访问失败, 直接放行, 不在锁上排队等超时
+        if (now < failOpenUntil) {
+            return true;
+        }
+        // 4. 从redis取一批, 同一个令牌桶同一时刻只有一个线程去取
+        synchronized (bucket) {
+            if (bucket.take()) {
+                return true;
+            }
+            if (now < bucket.denyUntil) {
+                return false;
+            }
+            if (now < failOpenUntil) {
+                return true;
+            }
+            long granted = fetch(bucketKey, conf, now);
+            if (granted < 0) {
+                return true;
+            }
+            if (granted == 0) {
+                bucket.denyUntil = now + Math.max(1, (long) (1000 / conf.getRate()));
+                return false;
+            }
+            bucket.permits.addAndGet(granted - 1);
+            return true;
+        }
+    }
+
+    /**
+     * 归还tryAcquire取到的令牌, 放回本地, 下一个请求直接使用
+     * 同一个请求有多条规则时, 后面的规则拒绝后归还前面已经取到的, 被拒绝的请求不消耗任何令牌
+     */
+    public void release(String rule, String key) {
+        if (!properties.isEnabled() || ruleOf(rule, key) == null) {
+            return;
+        }
+        LocalBucket bucket = buckets.get(bucketKey(rule, key));
+        if (bucket != null) {
+            bucket.permits.incrementAndGet();
+        }
+    }
+
+    /**
+     * 清除闲置的本地令牌桶, 按用户和ip限流时key的个数没有上限
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void evictIdle() {
+        long deadline = System.currentTimeMillis() - properties.getIdleTimeout().toMillis();
+        buckets.values().removeIf(bucket -> bucket.lastAccess < deadline);
+    }
+
+    /**
+     * 先找key单独的配置, 再找规则的配置
+     */
+    private RateLimitProperties.Rule ruleOf(String rule, String key) {
+        if (!key.isEmpty()) {
+            RateLimitProperties.Rule conf = properties.getRules().get(rule + ":" + key);
+            if (conf != null) {
+                return conf;
+            }
+        }
+        return properties.getRules().get(rule);
+    }
+
+    private static String bucketKey(String rule, String key) {
+        return RedisConstants.RATE_LIMIT_KEY + rule + (key.isEmpty() ? "" : ":" + key);
+    }
+
+    /**
+     * 从redis取令牌
+     * @return 取到的令牌数, 访问redis失败时返回-1
+     */
+    private long fetch(String bucketKey, RateLimitProperties.Rule conf, long now) {
+        long batch = Math.max(1, Math.min(conf.getBatch(), conf.getCapacity()));
+        try {
+            Long granted = stringRedisTemplate.execute(TOKEN_BUCKET_SCRIPT, Collections.singletonList(bucketKey),
+                    String.valueOf(conf.getRate()), String.valueOf(conf.getCapacity()),
+                    String.valueOf(batch), String.valueOf(now));
+            return granted == null ? 0 : granted;
+        } catch (RuntimeException e) {
+            // redis不可用时放行, 不因为限流影响正常请求; 每个放行窗口只打印一次日志
+            failOpenUntil = System.currentTimeMillis() + properties.getFailOpen().toMillis();
+            log.warn("限流令牌桶{}访问redis失败, {}ms内不限流: {}", bucketKey, properties.getFailOpen().toMillis(), e.toString());
+            return -1;
+        }
+    }
+
+    private static final class LocalBucket {
+        private final AtomicLong permits = new AtomicLong();
+
+        /**
+         * 在这个时间之前redis中不会有新的令牌
+         */
+        private volatile long denyUntil;
+
+        private volatile long lastAccess;
+
+        boolean take() {
+            long current;
+            while ((current = permits.get()) > 0) {
+                if (permits.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
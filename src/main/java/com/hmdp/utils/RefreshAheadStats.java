@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 提前刷新策略的计数: 命中、提前刷新、硬过期未命中
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-22 11:30
+ */
+
+public class RefreshAheadStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+    private final LongAdder hardMisses = new LongAdder();
+
+    void hit() {
+        hits.increment();
+    }
+
+    void earlyRefresh() {
+        earlyRefreshes.increment();
+    }
+
+    void hardMiss() {
+        hardMisses.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getEarlyRefreshes() {
+        return earlyRefreshes.sum();
+    }
+
+    public long getHardMisses() {
+        return hardMisses.sum();
+    }
+}
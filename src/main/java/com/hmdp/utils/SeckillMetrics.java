@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀订单落库的指标: 落库、重复投递、失败、转入死信的订单数, 库存key缺失被拒绝的请求数, 以及落库落后于下单的程度
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-30 09:30
+ */
+
+@Component
+public class SeckillMetrics implements MeterBinder {
+
+    private final LongAdder persisted = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder deadLetters = new LongAdder();
+    private final LongAdder stockMissing = new LongAdder();
+
+    /**
+     * 已经投递但还没有确认的订单数
+     */
+    private volatile long pending;
+
+    /**
+     * 最早一个没有落库的订单距今的毫秒数, 由恢复任务定期采样
+     */
+    private volatile long lagMillis;
+
+    public void persisted(long count) {
+        persisted.add(count);
+    }
+
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    public void failed() {
+        failures.increment();
+    }
+
+    public void claimed(long count) {
+        claimed.add(count);
+    }
+
+    public void deadLetter() {
+        deadLetters.increment();
+    }
+
+    /**
+     * redis中没有库存key, 下单被拒绝
+     */
+    public void stockMissing() {
+        stockMissing.increment();
+    }
+
+    public void lag(long pending, long lagMillis) {
+        this.pending = pending;
+        this.lagMillis = lagMillis;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        bindCounter(registry, "persisted", persisted);
+        bindCounter(registry, "duplicate", duplicates);
+        bindCounter(registry, "failed", failures);
+        bindCounter(registry, "claimed", claimed);
+        bindCounter(registry, "dead_letter", deadLetters);
+        bindCounter(registry, "stock_missing", stockMissing);
+        Gauge.builder("seckill.orders.pending", this, m -> m.pending)
+                .description("已经投递但还没有确认的订单数")
+                .register(registry);
+        TimeGauge.builder("seckill.orders.lag", this, TimeUnit.MILLISECONDS, m -> m.lagMillis)
+                .description("最早一个没有落库的订单距今的时间")
+                .register(registry);
+    }
+
+    private void bindCounter(MeterRegistry registry, String result, LongAdder adder) {
+        FunctionCounter.builder("seckill.orders", adder, LongAdder::sum)
+                .tags("result", result)
+                .register(registry);
+    }
+}
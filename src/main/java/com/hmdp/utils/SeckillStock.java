@@ -0,0 +1,431 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀库存在redis中的读写, 支持两种存储方式
+ * 1. 单key: 库存、已下单用户、订单stream各一个key, 一次lua脚本完成下单
+ * 2. 分段: 库存拆成N个分段, 同一个分段的key带有相同的hash tag, 集群模式下落在同一个槽, 不同分段分散到不同的槽
+ *    用户按id哈希到主分段, 主分段库存不足时依次尝试其他分段, 分段之间库存不均时定期再平衡
+ *    每个分段都用lua脚本原子地判断并扣减自己的库存, 总量不会超卖
+ *    不同分段不在同一个槽, 再平衡不能用一个脚本完成, 取出时在来源分段记录转移, 补给按转移id幂等, 中途宕机不会丢失库存
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-31 10:20
+ */
+
+@Slf4j
+@Component
+public class SeckillStock {
+
+    public static final long OK = 0;
+    public static final long SOLD_OUT = 1;
+    public static final long REPEAT = 2;
+
+    /**
+     * 库存key不存在, 拒绝下单, 不标记售罄
+     */
+    public static final long MISSING = 4;
+
+    /**
+     * 主分段库存不足, 已经在主分段记录了用户
+     */
+    private static final long RESERVED = 3;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT = script("seckill.lua");
+    private static final DefaultRedisScript<Long> SEGMENT_SCRIPT = script("seckill_segment.lua");
+    private static final DefaultRedisScript<Long> FAILOVER_SCRIPT = script("seckill_failover.lua");
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT = script("stock_take.lua");
+    private static final DefaultRedisScript<Long> GIVE_SCRIPT = script("stock_give.lua");
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SeckillProperties.Segment conf;
+
+    private final RedissonClient redissonClient;
+
+    /**
+     * 本节点写入或下单过的分段库存优惠券, 再平衡时只检查这些
+     */
+    private final Set<Long> segmentedVouchers = ConcurrentHashMap.newKeySet();
+
+    public SeckillStock(StringRedisTemplate stringRedisTemplate, SeckillProperties seckillProperties,
+                        RedissonClient redissonClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.conf = seckillProperties.getSegment();
+        this.redissonClient = redissonClient;
+    }
+
+    /**
+     * 所有订单stream, 分段模式下每个分段一个, 与分段的库存在同一个槽
+     */
+    public List<String> streams() {
+        List<String> streams = new ArrayList<>();
+        streams.add(RedisConstants.SECKILL_ORDER_STREAM);
+        if (conf.isEnabled()) {
+            for (int i = 0; i < conf.getBuckets(); i++) {
+                streams.add(streamKey(i));
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * 写入库存, 分段模式下平均分到每个分段, 余数分给前面的分段
+     * @param overwrite 是否覆盖已经存在的库存, 启动时加载传false, 避免覆盖其他节点已经扣减过的库存
+     * @return 是否写入了库存, 写入后调用方需要清除售罄标记
+     */
+    public boolean load(Long voucherId, int stock, boolean overwrite) {
+        if (!conf.isEnabled()) {
+            return set(RedisConstants.SECKILL_STOCK_KEY + voucherId, stock, overwrite);
+        }
+        int n = conf.getBuckets();
+        boolean written = false;
+        for (int i = 0; i < n; i++) {
+            written |= set(stockKey(voucherId, i), stock / n + (i < stock % n ? 1 : 0), overwrite);
+        }
+        segmentedVouchers.add(voucherId);
+        return written;
+    }
+
+    /**
+     * 下单: 判断库存和一人一单, 扣减库存并把订单写入stream
+     * @return OK, SOLD_OUT, REPEAT 或 MISSING
+     */
+    public long admit(Long voucherId, Long userId, long orderId) {
+        Object[] args = {userId.toString(), voucherId.toString(), String.valueOf(orderId)};
+        if (!conf.isEnabled()) {
+            List<String> keys = Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                    RedisConstants.SECKILL_ORDER_KEY + voucherId, RedisConstants.SECKILL_ORDER_STREAM);
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys, args);
+            return result == null ? SOLD_OUT : result;
+        }
+        segmentedVouchers.add(voucherId);
+        // 1. 在主分段判断一人一单并扣减库存
+        int n = conf.getBuckets();
+        int home = Math.floorMod(MurmurHash.hash32(userId.toString()), n);
+        Long result = stringRedisTemplate.execute(SEGMENT_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), streamKey(home)), args);
+        if (result == null || result != RESERVED) {
+            return result == null ? SOLD_OUT : result;
+        }
+        // 2. 主分段库存不足, 依次尝试其他分段
+        if (failover(voucherId, home, 1, args)) {
+            return OK;
+        }
+        // 3. 再平衡可能刚把库存补给到已经尝试过的分段, 总量(含转移中的库存)还有剩余时把所有分段再尝试一遍
+        Integer left = remaining(Collections.singletonList(voucherId)).get(voucherId);
+        if (left != null && left > 0 && failover(voucherId, home, 0, args)) {
+            return OK;
+        }
+        // 4. 所有分段都没有库存, 撤销主分段中的用户记录
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return SOLD_OUT;
+    }
+
+    /**
+     * 从home + from开始依次在每个分段扣减库存, 用户已经记录在主分段
+     * @return 是否扣减成功
+     */
+    private boolean failover(Long voucherId, int home, int from, Object[] args) {
+        int n = conf.getBuckets();
+        for (int i = from; i < n; i++) {
+            int bucket = (home + i) % n;
+            Long r = stringRedisTemplate.execute(FAILOVER_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, bucket), streamKey(bucket)), args);
+            if (r != null && r == OK) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 剩余库存, 分段模式下是各分段之和, 加上再平衡时已经取出还没有补给的库存
+     * @return 优惠券id -> 剩余库存, 没有加载到redis的优惠券不放入map
+     */
+    public Map<Long, Integer> remaining(Collection<Long> voucherIds) {
+        if (voucherIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        int n = conf.isEnabled() ? conf.getBuckets() : 1;
+        List<String> keys = new ArrayList<>(voucherIds.size() * n);
+        List<String> transferKeys = new ArrayList<>();
+        for (Long voucherId : voucherIds) {
+            if (conf.isEnabled()) {
+                for (int i = 0; i < n; i++) {
+                    keys.add(stockKey(voucherId, i));
+                    transferKeys.add(transferKey(voucherId, i));
+                }
+            } else {
+                keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            }
+        }
+        // 分段的key不在同一个槽, 用pipeline代替MGET; pipeline不是原子的, 读取期间正好完成的转移可能多算或漏算, 标记售罄前会再次确认
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.get(key.getBytes(StandardCharsets.UTF_8));
+            }
+            for (String key : transferKeys) {
+                connection.hVals(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        Map<Long, Integer> result = new HashMap<>(voucherIds.size() * 2);
+        int i = 0;
+        int t = keys.size();
+        for (Long voucherId : voucherIds) {
+            Integer sum = null;
+            for (int j = 0; j < n; j++, i++) {
+                Object value = values.get(i);
+                if (value != null) {
+                    sum = (sum == null ? 0 : sum) + Integer.parseInt(value.toString());
+                }
+                if (conf.isEnabled()) {
+                    sum = addTransfers(sum, values.get(t++));
+                }
+            }
+            if (sum != null) {
+                result.put(voucherId, sum);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 加上转移记录中的数量, 记录的值是 目标分段:数量
+     */
+    private static Integer addTransfers(Integer sum, Object transfers) {
+        if (!(transfers instanceof Collection) || ((Collection<?>) transfers).isEmpty()) {
+            return sum;
+        }
+        int total = sum == null ? 0 : sum;
+        for (Object transfer : (Collection<?>) transfers) {
+            String value = transfer.toString();
+            total += Integer.parseInt(value.substring(value.indexOf(':') + 1));
+        }
+        return total;
+    }
+
+    /**
+     * 定期检查分段库存, 最多和最少的分段相差超过平均值的一定比例时再平衡
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.segment.rebalance-millis:1000}")
+    public void rebalance() {
+        if (!conf.isEnabled()) {
+            return;
+        }
+        for (Long voucherId : segmentedVouchers) {
+            try {
+                if (!rebalance(voucherId)) {
+                    // 已经卖完, 不再检查
+                    segmentedVouchers.remove(voucherId);
+                }
+            } catch (RuntimeException e) {
+                log.error("秒杀券{}的分段库存再平衡失败", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 把高于平均值的分段多出的库存移到低于平均值的分段, 同一时刻只有一个节点执行
+     * 每次转移先在来源分段取出并记录, 再幂等地补给目标分段, 最后删除记录
+     * 补给之前宕机时记录还在, 下一次再平衡先把没有完成的转移补给完
+     * @return 是否还有库存或没有完成的转移
+     */
+    private boolean rebalance(Long voucherId) {
+        boolean pending = hasTransfers(voucherId);
+        long[] stocks = bucketStocks(voucherId);
+        if (!pending && !isUneven(stocks)) {
+            return Arrays.stream(stocks).sum() > 0;
+        }
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SECKILL_REBALANCE_KEY + voucherId);
+        if (!lock.tryLock()) {
+            return true;
+        }
+        try {
+            // 1. 补给上一次没有完成的转移
+            if (pending) {
+                resumeTransfers(voucherId);
+            }
+            // 2. 拿到锁后重新读取, 避免使用其他节点再平衡之前的值
+            stocks = bucketStocks(voucherId);
+            if (!isUneven(stocks)) {
+                return true;
+            }
+            // 3. 高于平均值的分段依次补给低于平均值的分段, 多余的零头留在原分段
+            long avg = Arrays.stream(stocks).sum() / stocks.length;
+            long[] surplus = new long[stocks.length];
+            long[] deficit = new long[stocks.length];
+            for (int i = 0; i < stocks.length; i++) {
+                surplus[i] = Math.max(0, stocks[i] - avg);
+                deficit[i] = Math.max(0, avg - stocks[i]);
+            }
+            long moved = 0;
+            for (int from = 0; from < stocks.length; from++) {
+                for (int to = 0; to < stocks.length && surplus[from] > 0; to++) {
+                    long amount = Math.min(surplus[from], deficit[to]);
+                    if (amount <= 0) {
+                        continue;
+                    }
+                    // 脚本按实际剩余取出, 期间有下单时可能少于计划的数量
+                    long took = transfer(voucherId, from, to, amount);
+                    surplus[from] -= amount;
+                    deficit[to] -= took;
+                    moved += took;
+                }
+            }
+            log.info("秒杀券{}分段库存再平衡, 移动库存{}, 再平衡前: {}", voucherId, moved, Arrays.toString(stocks));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从from分段取出最多amount个库存补给to分段
+     * @return 实际移动的数量
+     */
+    private long transfer(Long voucherId, int from, int to, long amount) {
+        String transferId = UUID.randomUUID().toString(true);
+        Long took = stringRedisTemplate.execute(TAKE_SCRIPT,
+                Arrays.asList(stockKey(voucherId, from), transferKey(voucherId, from)),
+                String.valueOf(amount), transferId, String.valueOf(to));
+        if (took == null || took <= 0) {
+            return 0;
+        }
+        give(voucherId, from, transferId, to, took);
+        return took;
+    }
+
+    /**
+     * 补给目标分段后删除来源分段的记录, 删除之前宕机时重复补给会被目标分段忽略
+     */
+    private void give(Long voucherId, int from, String transferId, int to, long amount) {
+        stringRedisTemplate.execute(GIVE_SCRIPT,
+                Arrays.asList(stockKey(voucherId, to), transferDoneKey(voucherId, to)),
+                transferId, String.valueOf(amount), String.valueOf(RedisConstants.SECKILL_TRANSFER_DONE_TTL));
+        stringRedisTemplate.opsForHash().delete(transferKey(voucherId, from), transferId);
+    }
+
+    /**
+     * 补给所有分段中没有完成的转移, 记录的值是 目标分段:数量
+     */
+    private void resumeTransfers(Long voucherId) {
+        for (int from = 0; from < conf.getBuckets(); from++) {
+            Map<Object, Object> transfers = stringRedisTemplate.opsForHash().entries(transferKey(voucherId, from));
+            for (Map.Entry<Object, Object> entry : transfers.entrySet()) {
+                String[] value = entry.getValue().toString().split(":");
+                log.warn("秒杀券{}补给未完成的库存转移{}: 分段{} -> 分段{}, 数量{}",
+                        voucherId, entry.getKey(), from, value[0], value[1]);
+                give(voucherId, from, entry.getKey().toString(), Integer.parseInt(value[0]), Long.parseLong(value[1]));
+            }
+        }
+    }
+
+    private boolean hasTransfers(Long voucherId) {
+        int n = conf.getBuckets();
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < n; i++) {
+                connection.exists(transferKey(voucherId, i).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        return values.stream().anyMatch(Boolean.TRUE::equals);
+    }
+
+    /**
+     * 剩余总量不少于分段数, 且最多和最少的分段相差超过平均值的rebalanceRatio
+     */
+    private boolean isUneven(long[] stocks) {
+        long total = Arrays.stream(stocks).sum();
+        if (total < stocks.length) {
+            // 剩余太少, 由跨分段扣减兜底
+            return false;
+        }
+        long max = Arrays.stream(stocks).max().orElse(0);
+        long min = Arrays.stream(stocks).min().orElse(0);
+        return max - min > Math.max(1, (long) (total / stocks.length * conf.getRebalanceRatio()));
+    }
+
+    private long[] bucketStocks(Long voucherId) {
+        int n = conf.getBuckets();
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < n; i++) {
+                connection.get(stockKey(voucherId, i).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        long[] stocks = new long[n];
+        for (int i = 0; i < n; i++) {
+            Object value = values.get(i);
+            stocks[i] = value == null ? 0 : Math.max(0, Long.parseLong(value.toString()));
+        }
+        return stocks;
+    }
+
+    private boolean set(String key, int stock, boolean overwrite) {
+        if (overwrite) {
+            stringRedisTemplate.opsForValue().set(key, String.valueOf(stock));
+            return true;
+        }
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(key, String.valueOf(stock)));
+    }
+
+    /**
+     * 分段的hash tag, 同一个分段的库存、已下单用户、订单stream在同一个槽
+     */
+    private static String tag(int bucket) {
+        return "{seckill-" + bucket + "}";
+    }
+
+    private static String stockKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_STOCK_KEY + tag(bucket) + ":" + voucherId;
+    }
+
+    private static String orderKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_ORDER_KEY + tag(bucket) + ":" + voucherId;
+    }
+
+    private static String transferKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_TRANSFER_KEY + tag(bucket) + ":" + voucherId;
+    }
+
+    private static String transferDoneKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_TRANSFER_DONE_KEY + tag(bucket) + ":" + voucherId;
+    }
+
+    private static String streamKey(int bucket) {
+        return RedisConstants.SECKILL_ORDER_STREAM + ":" + tag(bucket);
+    }
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 秒杀券的元数据, 不可变, 下单时在内存中判断秒杀是否开始、是否结束
+ * 开始和结束时间转换为毫秒数, 判断时不需要创建LocalDateTime
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-05 09:20
+ */
+
+public final class SeckillVoucherMeta {
+
+    private final long voucherId;
+    private final int stock;
+    private final long beginMillis;
+    private final long endMillis;
+
+    public SeckillVoucherMeta(SeckillVoucher voucher) {
+        this.voucherId = voucher.getVoucherId();
+        this.stock = voucher.getStock();
+        this.beginMillis = toMillis(voucher.getBeginTime());
+        this.endMillis = toMillis(voucher.getEndTime());
+    }
+
+    public long getVoucherId() {
+        return voucherId;
+    }
+
+    /**
+     * 加载时数据库中的库存, 不随下单变化
+     */
+    public int getStock() {
+        return stock;
+    }
+
+    public boolean notStarted(long nowMillis) {
+        return nowMillis < beginMillis;
+    }
+
+    public boolean ended(long nowMillis) {
+        return nowMillis > endMillis;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
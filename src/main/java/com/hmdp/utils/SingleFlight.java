@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并: 同一个key的并发调用只有第一个线程真正执行, 其余线程等待它的结果
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-16 09:40
+ */
+
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行loader, 同一时刻同一个key只会有一个loader在运行
+     * @param key 合并的key
+     * @param loader 真正的加载逻辑
+     * @param timeout 等待其他线程结果的最长时间
+     * @return loader的结果
+     * @throws TimeoutException 等待超时
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader, long timeout, TimeUnit unit) throws TimeoutException {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, future);
+        if (existing == null) {
+            // 1. 当前线程是第一个, 负责执行
+            try {
+                T result = loader.get();
+                future.complete(result);
+                return result;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                calls.remove(key, future);
+            }
+        }
+        // 2. 已经有线程在执行, 等待它的结果
+        try {
+            return (T) existing.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * 正在执行中的key数量
+     */
+    public int inFlight() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,197 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀券的售罄标记: 售罄后的请求只查一次本地map就返回, 不再访问redis和数据库
+ * 第一个发现库存为0的节点在redis中标记并广播, 其他节点收到后在本地标记
+ * 每次补充库存时版本加1, 补充之前观察到的售罄不会再生效; 定期与redis对账, 兜底错过的广播
+ * 对账时重新确认redis模式下标记过的券确实没有库存(含再平衡中转移的库存), 还有库存的清除标记, 误标记不会一直生效
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-01 09:40
+ */
+
+@Slf4j
+@Component
+public class SoldOutMarker {
+
+    private static final DefaultRedisScript<Long> MARK_SCRIPT;
+    private static final DefaultRedisScript<Long> CLEAR_SCRIPT;
+    static {
+        MARK_SCRIPT = new DefaultRedisScript<>();
+        MARK_SCRIPT.setLocation(new ClassPathResource("sold_out_mark.lua"));
+        MARK_SCRIPT.setResultType(Long.class);
+        CLEAR_SCRIPT = new DefaultRedisScript<>();
+        CLEAR_SCRIPT.setLocation(new ClassPathResource("sold_out_clear.lua"));
+        CLEAR_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final long MARKED = 1;
+    private static final long STALE = 0;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SeckillProperties.SoldOut conf;
+
+    private final SeckillProperties seckillProperties;
+
+    private final SeckillStock seckillStock;
+
+    /**
+     * 优惠券id -> 库存版本, 没有补充过库存的券为0
+     */
+    private final Map<Long, Long> epochs = new ConcurrentHashMap<>();
+
+    /**
+     * 当前版本已经售罄的优惠券id
+     */
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    public SoldOutMarker(StringRedisTemplate stringRedisTemplate, SeckillProperties seckillProperties,
+                         RedisMessageListenerContainer listenerContainer, SeckillStock seckillStock) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.conf = seckillProperties.getSoldOut();
+        this.seckillProperties = seckillProperties;
+        this.seckillStock = seckillStock;
+        listenerContainer.addMessageListener((message, pattern) ->
+                onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return conf.isEnabled() && soldOut.contains(voucherId);
+    }
+
+    /**
+     * 当前的库存版本, 在读取库存之前获取, 发现售罄时传给markSoldOut
+     */
+    public long epoch(Long voucherId) {
+        return epochs.getOrDefault(voucherId, 0L);
+    }
+
+    /**
+     * 标记售罄
+     * @param epoch 读取库存之前的版本, 期间补充过库存则忽略
+     */
+    public void markSoldOut(Long voucherId, long epoch) {
+        if (!conf.isEnabled() || soldOut.contains(voucherId) || epoch != epoch(voucherId)) {
+            return;
+        }
+        Long result = stringRedisTemplate.execute(MARK_SCRIPT,
+                Collections.singletonList(RedisConstants.SECKILL_SOLD_OUT_KEY), voucherId.toString(), String.valueOf(epoch));
+        if (result == null || result == STALE) {
+            return;
+        }
+        apply(voucherId, epoch, true);
+        // 只有第一个标记成功的节点广播
+        if (result == MARKED) {
+            publish(voucherId, epoch, true);
+            log.info("秒杀券{}已售罄", voucherId);
+        }
+    }
+
+    /**
+     * 补充库存之后调用, 清除所有节点的售罄标记
+     */
+    public void clear(Long voucherId) {
+        Long epoch = stringRedisTemplate.execute(CLEAR_SCRIPT,
+                Collections.singletonList(RedisConstants.SECKILL_SOLD_OUT_KEY), voucherId.toString());
+        if (epoch == null) {
+            return;
+        }
+        apply(voucherId, epoch, false);
+        publish(voucherId, epoch, false);
+    }
+
+    /**
+     * 以redis中的标记为准对账, 启动时先执行一次
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.seckill.sold-out.reconcile-millis:5000}")
+    public void reconcile() {
+        if (!conf.isEnabled()) {
+            return;
+        }
+        Map<Object, Object> marks = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_SOLD_OUT_KEY);
+        List<Long> marked = new ArrayList<>();
+        for (Map.Entry<Object, Object> entry : marks.entrySet()) {
+            String[] parts = entry.getValue().toString().split(":");
+            if ("1".equals(parts[1])) {
+                marked.add(Long.valueOf(entry.getKey().toString()));
+            }
+        }
+        // 1. 重新确认标记过的券, 还有库存说明是误标记, 清除后所有节点重新访问redis
+        Set<Long> restocked = verify(marked);
+        for (Map.Entry<Object, Object> entry : marks.entrySet()) {
+            Long voucherId = Long.valueOf(entry.getKey().toString());
+            if (restocked.contains(voucherId)) {
+                continue;
+            }
+            String[] parts = entry.getValue().toString().split(":");
+            apply(voucherId, Long.parseLong(parts[0]), "1".equals(parts[1]));
+        }
+        soldOut.removeIf(voucherId -> !marks.containsKey(voucherId.toString()));
+    }
+
+    /**
+     * redis模式下剩余库存大于0的券清除售罄标记, 数据库模式的标记来自数据库的条件更新, 不需要确认
+     * @return 清除了标记的券
+     */
+    private Set<Long> verify(List<Long> marked) {
+        if (marked.isEmpty() || seckillProperties.getMode() != SeckillProperties.Mode.REDIS) {
+            return Collections.emptySet();
+        }
+        Set<Long> restocked = new HashSet<>();
+        seckillStock.remaining(marked).forEach((voucherId, remaining) -> {
+            if (remaining > 0) {
+                log.warn("秒杀券{}标记为售罄但还有库存{}, 清除标记", voucherId, remaining);
+                clear(voucherId);
+                restocked.add(voucherId);
+            }
+        });
+        return restocked;
+    }
+
+    private void onMessage(String body) {
+        String[] parts = body.split("\\|");
+        apply(Long.valueOf(parts[0]), Long.parseLong(parts[1]), "1".equals(parts[2]));
+    }
+
+    /**
+     * 版本只增不减, 旧版本的消息直接忽略; 加锁避免售罄和补充库存的消息交错
+     */
+    private synchronized void apply(Long voucherId, long epoch, boolean isSoldOut) {
+        long current = epochs.merge(voucherId, epoch, Math::max);
+        if (epoch < current) {
+            return;
+        }
+        if (isSoldOut) {
+            soldOut.add(voucherId);
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+
+    private void publish(Long voucherId, long epoch, boolean isSoldOut) {
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL,
+                voucherId + "|" + epoch + "|" + (isSoldOut ? 1 : 0));
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分段锁: 固定个数的锁, key按哈希映射到其中一个
+ * 不同的key可能共用一把锁, 只会多等待, 不会互相放行; 锁的个数固定, 不会随key的个数增长
+ * key是long, 获取锁时不创建对象, 用来代替 synchronized (userId.toString().intern())
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-08-06 10:00
+ */
+
+public final class StripedLock {
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes 锁的个数, 向上取整为2的幂
+     */
+    public StripedLock(int stripes) {
+        if (stripes <= 0 || stripes > 1 << 30) {
+            throw new IllegalArgumentException("illegal stripes: " + stripes);
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * key对应的锁
+     */
+    public Lock get(long key) {
+        return locks[index(key)];
+    }
+
+    /**
+     * murmur3的fmix64, 连续的id也能均匀分到每一把锁
+     */
+    private int index(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+}
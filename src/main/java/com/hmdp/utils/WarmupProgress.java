@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次缓存预热的进度
+ *
+ * @author Mr.Lu
+ * @version 1.0
+ * @date 2024-07-24 10:15
+ */
+
+public class WarmupProgress {
+
+    public enum Status {
+        RUNNING, FINISHED, FAILED
+    }
+
+    private final String name;
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime;
+    private volatile Status status = Status.RUNNING;
+    private volatile String error;
+
+    /**
+     * 从数据库读取的条数
+     */
+    private final AtomicLong read = new AtomicLong();
+    /**
+     * 已写入redis的条数
+     */
+    private final AtomicLong written = new AtomicLong();
+    /**
+     * 写入失败的条数
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    public WarmupProgress(String name) {
+        this.name = name;
+    }
+
+    void addRead(long n) {
+        read.addAndGet(n);
+    }
+
+    void addWritten(long n) {
+        written.addAndGet(n);
+    }
+
+    void addFailed(long n) {
+        failed.addAndGet(n);
+    }
+
+    void finish(Throwable e) {
+        if (e != null) {
+            status = Status.FAILED;
+            error = e.toString();
+        } else {
+            status = Status.FINISHED;
+        }
+        endTime = System.currentTimeMillis();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public long getRead() {
+        return read.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * 平均每秒写入的条数
+     */
+    public long getRowsPerSecond() {
+        long elapsed = (status == Status.RUNNING ? System.currentTimeMillis() : endTime) - startTime;
+        return elapsed <= 0 ? 0 : written.get() * 1000 / elapsed;
+    }
+}
@@ -0,0 +1,13 @@
+-- 这里的 KEYS[1] 是哈希模式缓存的key，ARGV[1] 是本次更新的版本号，之后依次是 field、value
+-- 标记field不是1说明key不存在或者是空值，不写入，避免留下只有部分字段的hash
+if (redis.call('HGET', KEYS[1], '@') ~= '1') then
+  return 0
+end
+-- 已经写入过更新的版本，说明提交后的回调乱序执行，旧的更新不再覆盖
+local current = tonumber(redis.call('HGET', KEYS[1], '@v')) or 0
+if (current >= tonumber(ARGV[1])) then
+  return 2
+end
+-- 只覆盖变化的字段，同时记录版本号
+redis.call('HSET', KEYS[1], '@v', ARGV[1], unpack(ARGV, 2))
+return 1
@@ -0,0 +1,28 @@
+-- 令牌桶, 一次取出多个令牌, 剩余不足时取出剩余的整数个
+-- KEYS[1]: 令牌桶的key
+-- ARGV[1]: 每秒生成的令牌数, ARGV[2]: 桶的容量, ARGV[3]: 想要取出的令牌数, ARGV[4]: 当前时间的毫秒数
+-- 返回实际取出的令牌数
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local requested = tonumber(ARGV[3])
+local now = tonumber(ARGV[4])
+
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if tokens == nil or ts == nil then
+    tokens = capacity
+    ts = now
+end
+-- 按经过的时间补充令牌, 其他节点的时钟稍慢时不倒退
+if now > ts then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+local granted = math.min(requested, math.floor(tokens))
+tokens = tokens - granted
+redis.call('hmset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(ts))
+-- 桶装满之后就和不存在一样, 过期删除
+redis.call('pexpire', KEYS[1], math.ceil(capacity / rate * 1000) + 1000)
+return granted
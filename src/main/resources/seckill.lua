@@ -0,0 +1,21 @@
+-- 这里的 KEYS[1] 是库存key，KEYS[2] 是已下单用户的set，KEYS[3] 是订单stream
+-- ARGV[1] 是用户id，ARGV[2] 是优惠券id，ARGV[3] 是订单id
+-- 1. key不存在说明库存没有加载(redis重启、key被淘汰)，返回4，调用方拒绝下单，不能当作库存不足
+local stock = redis.call('GET', KEYS[1])
+if (not stock) then
+  return 4
+end
+-- 2. 判断库存是否充足
+if ((tonumber(stock) or 0) <= 0) then
+  return 1
+end
+-- 3. 判断用户是否已经下过单
+if (redis.call('SISMEMBER', KEYS[2], ARGV[1]) == 1) then
+  return 2
+end
+-- 4. 扣减库存，记录下单用户
+redis.call('INCRBY', KEYS[1], -1)
+redis.call('SADD', KEYS[2], ARGV[1])
+-- 5. 订单写入stream，与扣减在同一个脚本中，不会出现扣了库存却丢了订单
+redis.call('XADD', KEYS[3], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
@@ -0,0 +1,9 @@
+-- 主分段库存不足时，在其他分段扣减库存
+-- 这里的 KEYS[1] 是分段的库存key，KEYS[2] 是分段的订单stream
+-- ARGV[1] 是用户id，ARGV[2] 是优惠券id，ARGV[3] 是订单id
+if ((tonumber(redis.call('GET', KEYS[1])) or 0) <= 0) then
+  return 1
+end
+redis.call('INCRBY', KEYS[1], -1)
+redis.call('XADD', KEYS[2], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
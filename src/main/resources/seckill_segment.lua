@@ -0,0 +1,21 @@
+-- 分段库存模式下在用户的主分段执行
+-- 这里的 KEYS[1] 是主分段的库存key，KEYS[2] 是主分段的已下单用户set，KEYS[3] 是主分段的订单stream
+-- ARGV[1] 是用户id，ARGV[2] 是优惠券id，ARGV[3] 是订单id
+-- 1. 主分段的库存key不存在说明库存没有加载，返回4，调用方拒绝下单，不能当作库存不足
+local stock = redis.call('GET', KEYS[1])
+if (not stock) then
+  return 4
+end
+-- 2. 一人一单只在主分段判断，用户无论从哪个分段扣减库存，都记录在主分段
+if (redis.call('SISMEMBER', KEYS[2], ARGV[1]) == 1) then
+  return 2
+end
+redis.call('SADD', KEYS[2], ARGV[1])
+-- 3. 主分段库存不足，保留用户记录，由调用方依次尝试其他分段，全部失败时再删除
+if ((tonumber(stock) or 0) <= 0) then
+  return 3
+end
+-- 4. 扣减库存，订单写入stream
+redis.call('INCRBY', KEYS[1], -1)
+redis.call('XADD', KEYS[3], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
@@ -0,0 +1,8 @@
+-- 补充库存后清除售罄标记, 版本加1, 使补充之前观察到的售罄全部失效
+-- KEYS[1]: 售罄标记的hash
+-- ARGV[1]: 优惠券id
+-- 返回新的版本
+local current = redis.call('hget', KEYS[1], ARGV[1]) or '0:0'
+local epoch = tonumber(string.match(current, '^(%d+):')) + 1
+redis.call('hset', KEYS[1], ARGV[1], epoch .. ':0')
+return epoch
@@ -0,0 +1,14 @@
+-- 标记秒杀券售罄, hash的值为 "版本:是否售罄"
+-- KEYS[1]: 售罄标记的hash
+-- ARGV[1]: 优惠券id, ARGV[2]: 观察到售罄时的库存版本
+-- 返回 0: 库存已经补充过, 观察到的版本过期; 1: 标记成功; 2: 已经被其他节点标记
+local current = redis.call('hget', KEYS[1], ARGV[1]) or '0:0'
+local epoch, flag = string.match(current, '^(%d+):(%d)$')
+if epoch ~= ARGV[2] then
+    return 0
+end
+if flag == '1' then
+    return 2
+end
+redis.call('hset', KEYS[1], ARGV[1], epoch .. ':1')
+return 1
@@ -0,0 +1,9 @@
+-- 再平衡时把取出的库存补给另一个分段，同一个转移id只补给一次，重试时不会多给
+-- 这里的 KEYS[1] 是分段的库存key，KEYS[2] 是分段已经完成的转移id的set
+-- ARGV[1] 是转移id，ARGV[2] 是补给的数量，ARGV[3] 是已完成记录的过期时间(秒)
+if (redis.call('SADD', KEYS[2], ARGV[1]) == 0) then
+  return 0
+end
+redis.call('EXPIRE', KEYS[2], ARGV[3])
+redis.call('INCRBY', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,13 @@
+-- 再平衡时从一个分段取出库存，同时在这个分段记录转移，补给之前宕机时由下一次再平衡继续补给
+-- 这里的 KEYS[1] 是分段的库存key，KEYS[2] 是分段的转移记录hash
+-- ARGV[1] 是最多取出的数量，ARGV[2] 是转移id，ARGV[3] 是补给的分段
+local stock = tonumber(redis.call('GET', KEYS[1])) or 0
+local take = math.min(stock, tonumber(ARGV[1]))
+if (take <= 0) then
+  return 0
+end
+-- 扣减和记录在同一个脚本中，不会出现取出了库存却没有记录
+redis.call('DECRBY', KEYS[1], take)
+redis.call('HSET', KEYS[2], ARGV[2], ARGV[3] .. ':' .. take)
+-- 返回实际取出的数量
+return take
@@ -2,14 +2,23 @@ package com.hmdp;
 
 import com.hmdp.config.RedissonConfig;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.RedisIdWorker;
 import org.junit.jupiter.api.Test;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
 @SpringBootTest
 class HmDianPingApplicationTests {
 
@@ -19,11 +28,46 @@ class HmDianPingApplicationTests {
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
     @Test
     void testSavaShop(){
         shopService.saveShop2Redis(1L, 10L);
     }
 
+    /**
+     * 300个线程各生成10000个id, 号段在本地分配, 大部分id不访问redis; 所有id不重复
+     */
+    @Test
+    void testIdWorker() throws Exception {
+        int threads = 300;
+        int perThread = 10000;
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                futures.add(es.submit(() -> {
+                    long[] ids = new long[perThread];
+                    for (int i = 0; i < perThread; i++) {
+                        ids[i] = redisIdWorker.nextId("order");
+                    }
+                    return ids;
+                }));
+            }
+            long[] all = new long[threads * perThread];
+            for (int t = 0; t < threads; t++) {
+                System.arraycopy(futures.get(t).get(1, TimeUnit.MINUTES), 0, all, t * perThread, perThread);
+            }
+            Arrays.sort(all);
+            for (int i = 1; i < all.length; i++) {
+                assertNotEquals(all[i - 1], all[i], "duplicate id");
+            }
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
     @Test
     void testRedisson() throws InterruptedException {
         // 获取锁（可重入）,指定锁的名称
@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 验证缓存值的头部解析、二进制编解码和压缩标志位
+ */
+class CacheEnvelopeTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    @Test
+    void headerWithoutCost() {
+        byte[] bytes = CacheEnvelope.wrap(codec, shop(), 1721356800123L);
+        assertTrue(CacheEnvelope.isEnvelope(bytes));
+        assertEquals(BinaryCacheCodec.ID, CacheEnvelope.codecId(bytes));
+        assertEquals(0, CacheEnvelope.flags(bytes));
+        assertEquals(1721356800123L, CacheEnvelope.expireAt(bytes));
+        assertEquals(0, CacheEnvelope.cost(bytes));
+        assertEquals(CacheEnvelope.HEADER_LENGTH, CacheEnvelope.payloadOffset(bytes));
+        assertShop(decode(bytes));
+    }
+
+    @Test
+    void headerWithCost() {
+        byte[] bytes = CacheEnvelope.wrap(codec, shop(), 0, 70000);
+        assertEquals(CacheEnvelope.FLAG_COST, CacheEnvelope.flags(bytes));
+        assertEquals(0, CacheEnvelope.expireAt(bytes));
+        assertEquals(70000, CacheEnvelope.cost(bytes));
+        assertEquals(CacheEnvelope.HEADER_LENGTH + 4, CacheEnvelope.payloadOffset(bytes));
+        assertShop(decode(bytes));
+    }
+
+    @Test
+    void legacyJsonIsNotEnvelope() {
+        assertFalse(CacheEnvelope.isEnvelope("{\"id\":1,\"name\":\"103茶餐厅\"}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(CacheEnvelope.isEnvelope(new byte[]{CacheEnvelope.MAGIC, BinaryCacheCodec.ID}));
+        assertFalse(CacheEnvelope.isEnvelope(null));
+    }
+
+    @Test
+    void compressKeepsHeaderAndCost() {
+        Shop shop = shop();
+        char[] images = new char[2000];
+        Arrays.fill(images, 'a');
+        shop.setImages(new String(images));
+        byte[] bytes = CacheEnvelope.wrap(codec, shop, 1721356800123L, 35);
+
+        byte[] compressed = CacheEnvelope.compress(bytes, Deflater.BEST_SPEED);
+        assertTrue(CacheEnvelope.isCompressed(compressed));
+        assertTrue(compressed.length < bytes.length);
+        // 判断逻辑过期和读取重建耗时不用解压
+        assertEquals(1721356800123L, CacheEnvelope.expireAt(compressed));
+        assertEquals(35, CacheEnvelope.cost(compressed));
+        assertEquals(BinaryCacheCodec.ID, CacheEnvelope.codecId(compressed));
+        assertArrayEquals(CacheEnvelope.payload(bytes), CacheEnvelope.payload(compressed));
+        assertEquals(shop.getImages(), decode(compressed).getImages());
+        // 已经压缩过的不再压缩
+        assertSame(compressed, CacheEnvelope.compress(compressed, Deflater.BEST_SPEED));
+    }
+
+    @Test
+    void incompressiblePayloadIsKept() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        byte[] bytes = CacheEnvelope.wrap(codec, shop, 0);
+        byte[] compressed = CacheEnvelope.compress(bytes, Deflater.BEST_SPEED);
+        assertSame(bytes, compressed);
+        assertFalse(CacheEnvelope.isCompressed(compressed));
+    }
+
+    @Test
+    void corruptedCompressedPayloadFails() {
+        char[] images = new char[2000];
+        Arrays.fill(images, 'b');
+        Shop shop = shop();
+        shop.setImages(new String(images));
+        byte[] compressed = CacheEnvelope.compress(CacheEnvelope.wrap(codec, shop, 0), Deflater.BEST_SPEED);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length - 4);
+        assertThrows(IllegalStateException.class, () -> CacheEnvelope.payload(truncated));
+    }
+
+    @Test
+    void binaryCodecRejectsOtherSchema() {
+        byte[] payload = codec.encode(shop());
+        // 字段不同, 签名不同, 按缓存未命中处理
+        assertNull(codec.decode(payload, 0, payload.length, Legacy.class));
+        assertNull(codec.decode(payload, 0, 2, Shop.class));
+    }
+
+    @Test
+    void binaryCodecKeepsNegativeAndLargeNumbers() {
+        Shop shop = new Shop();
+        shop.setId(Long.MAX_VALUE);
+        shop.setAvgPrice(-1L);
+        shop.setComments(Integer.MIN_VALUE);
+        shop.setX(-120.149192);
+        byte[] payload = codec.encode(shop);
+        Shop decoded = codec.decode(payload, 0, payload.length, Shop.class);
+        assertEquals(Long.MAX_VALUE, decoded.getId());
+        assertEquals(-1L, decoded.getAvgPrice());
+        assertEquals(Integer.MIN_VALUE, decoded.getComments());
+        assertEquals(-120.149192, decoded.getX());
+        assertNull(decoded.getName());
+    }
+
+    private Shop decode(byte[] bytes) {
+        byte[] payload = CacheEnvelope.payload(bytes);
+        return codec.decode(payload, 0, payload.length, Shop.class);
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setArea("大关");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123000000));
+        return shop;
+    }
+
+    private static void assertShop(Shop shop) {
+        assertEquals(1L, shop.getId());
+        assertEquals("103茶餐厅", shop.getName());
+        assertEquals("大关", shop.getArea());
+        assertEquals(120.149192, shop.getX());
+        assertEquals(80L, shop.getAvgPrice());
+        assertEquals(3035, shop.getComments());
+        assertEquals(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123000000), shop.getCreateTime());
+        assertNull(shop.getImages());
+    }
+
+    /**
+     * 字段和Shop不同的类
+     */
+    static class Legacy {
+        private Long id;
+        private String title;
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用可控的时钟验证负缓存的开放寻址、过期和存活时间上限
+ */
+class NegativeCacheTest {
+
+    private static final Duration BASE_TTL = Duration.ofSeconds(30);
+    private static final Duration MAX_TTL = Duration.ofMinutes(2);
+
+    private final AtomicLong now = new AtomicLong(1_700_000_000_000L);
+
+    @Test
+    void addContainsRemove() {
+        NegativeCache cache = new NegativeCache(1024, BASE_TTL, MAX_TTL, now::get);
+        for (long id = 0; id < 500; id++) {
+            cache.add(id * 16);
+        }
+        assertEquals(500, cache.size());
+        for (long id = 0; id < 500; id++) {
+            assertTrue(cache.contains(id * 16), "missing id " + id * 16);
+        }
+        assertFalse(cache.contains(1));
+        // 删除后探测链上后面的条目仍然能找到
+        for (long id = 0; id < 500; id += 2) {
+            cache.remove(id * 16);
+        }
+        assertEquals(250, cache.size());
+        for (long id = 0; id < 500; id++) {
+            assertEquals(id % 2 == 1, cache.contains(id * 16), "id " + id * 16);
+        }
+    }
+
+    @Test
+    void expiresAfterBaseTtl() {
+        NegativeCache cache = new NegativeCache(1024, BASE_TTL, MAX_TTL, now::get);
+        cache.add(7);
+        now.addAndGet(BASE_TTL.toMillis() - 1);
+        assertTrue(cache.contains(7));
+        now.addAndGet(BASE_TTL.toMillis() * 2);
+        assertFalse(cache.contains(7));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void probingBacksOffButNeverOutlivesMaxTtl() {
+        NegativeCache cache = new NegativeCache(1024, BASE_TTL, MAX_TTL, now::get);
+        long addedAt = now.get();
+        cache.add(7);
+        // 每秒探测一次, 存活时间翻倍, 但不会超过第一次记录之后的maxTtl
+        while (now.get() < addedAt + MAX_TTL.toMillis()) {
+            assertTrue(cache.contains(7));
+            now.addAndGet(1000);
+        }
+        assertFalse(cache.contains(7));
+    }
+
+    @Test
+    void readdAfterExpiryRestartsLifetime() {
+        NegativeCache cache = new NegativeCache(1024, BASE_TTL, MAX_TTL, now::get);
+        cache.add(7);
+        assertTrue(cache.contains(7));
+        now.addAndGet(MAX_TTL.toMillis());
+        // 过期后没有被探测, 直接从redis确认后重新记录
+        cache.add(7);
+        assertTrue(cache.contains(7));
+        now.addAndGet(MAX_TTL.toMillis() - 1);
+        assertTrue(cache.contains(7));
+        now.addAndGet(1);
+        assertFalse(cache.contains(7));
+    }
+
+    @Test
+    void fullSegmentPurgesExpiredFirst() {
+        // 16个分段, 每个分段最多4个
+        NegativeCache cache = new NegativeCache(64, BASE_TTL, MAX_TTL, now::get);
+        for (long id = 0; id < 64; id++) {
+            cache.add(id);
+        }
+        int before = cache.size();
+        now.addAndGet(BASE_TTL.toMillis());
+        for (long id = 1000; id < 1064; id++) {
+            cache.add(id);
+        }
+        assertTrue(cache.size() <= 64, "size " + cache.size());
+        for (long id = 0; id < 64; id++) {
+            assertFalse(cache.contains(id));
+        }
+        assertTrue(before <= 64, "size " + before);
+        assertTrue(cache.contains(1063));
+    }
+}
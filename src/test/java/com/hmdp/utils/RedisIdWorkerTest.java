@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.IdWorkerProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 用内存中的计数器模拟redis的INCRBY, 验证多线程、多节点下生成的id不重复
+ */
+class RedisIdWorkerTest {
+
+    private static final int THREADS = 32;
+    private static final int IDS_PER_THREAD = 50000;
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final AtomicLong redisCalls = new AtomicLong();
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            redisCalls.incrementAndGet();
+            return counters.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong())
+                    .addAndGet(invocation.getArgument(1));
+        });
+        when(ops.increment(anyString())).thenAnswer(invocation ->
+                counters.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong()).incrementAndGet());
+    }
+
+    @Test
+    void uniqueUnderContention() throws Exception {
+        RedisIdWorker worker = new RedisIdWorker(stringRedisTemplate, properties(-1, 1000));
+        long[] ids = generate(worker, THREADS, IDS_PER_THREAD);
+        assertUnique(ids);
+        // 每个号段只访问一次redis, 最多多预取一个号段
+        long blocks = (long) THREADS * IDS_PER_THREAD / 1000;
+        assertTrue(redisCalls.get() <= blocks + 1, "redis calls: " + redisCalls.get());
+        worker.shutdown();
+    }
+
+    @Test
+    void uniqueAcrossNodesSharingNodeId() throws Exception {
+        // 两个节点配置了相同的节点号, 号段仍然由同一个key分配
+        RedisIdWorker node1 = new RedisIdWorker(stringRedisTemplate, properties(7, 100));
+        RedisIdWorker node2 = new RedisIdWorker(stringRedisTemplate, properties(7, 100));
+        long[] ids1 = generate(node1, THREADS / 2, IDS_PER_THREAD);
+        long[] ids2 = generate(node2, THREADS / 2, IDS_PER_THREAD);
+        long[] all = Arrays.copyOf(ids1, ids1.length + ids2.length);
+        System.arraycopy(ids2, 0, all, ids1.length, ids2.length);
+        assertUnique(all);
+        node1.shutdown();
+        node2.shutdown();
+    }
+
+    @Test
+    void sequenceRestartsEveryDay() {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        RedisIdWorker worker = new RedisIdWorker(stringRedisTemplate, properties(1, 10), now::get);
+        long first = worker.nextId("order");
+        for (int i = 0; i < 25; i++) {
+            worker.nextId("order");
+        }
+        now.addAndGet(TimeUnit.DAYS.toMillis(1));
+        long nextDay = worker.nextId("order");
+        assertEquals(0, first & RedisIdWorker.MAX_SEQUENCE);
+        assertEquals(0, nextDay & RedisIdWorker.MAX_SEQUENCE);
+        assertTrue(nextDay > first);
+        worker.shutdown();
+    }
+
+    /**
+     * 每个线程生成的id单调递增, 返回所有线程的id
+     */
+    private long[] generate(RedisIdWorker worker, int threads, int perThread) throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(es.submit(() -> {
+                start.await();
+                long[] ids = new long[perThread];
+                for (int i = 0; i < perThread; i++) {
+                    ids[i] = worker.nextId("order");
+                    if (i > 0) {
+                        assertTrue(ids[i] > ids[i - 1], "ids of one thread must increase");
+                    }
+                }
+                return ids;
+            }));
+        }
+        start.countDown();
+        try {
+            long[] all = new long[threads * perThread];
+            for (int t = 0; t < threads; t++) {
+                System.arraycopy(futures.get(t).get(1, TimeUnit.MINUTES), 0, all, t * perThread, perThread);
+            }
+            return all;
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    private static void assertUnique(long[] ids) {
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue(sorted[i] != sorted[i - 1], "duplicate id: " + sorted[i]);
+        }
+    }
+
+    private static IdWorkerProperties properties(int nodeId, int blockSize) {
+        IdWorkerProperties properties = new IdWorkerProperties();
+        properties.setNodeId(nodeId);
+        properties.setBlockSize(blockSize);
+        return properties;
+    }
+}
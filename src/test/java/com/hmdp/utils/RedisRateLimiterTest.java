@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RateLimitProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用内存中的令牌桶模拟rate_limit.lua, 验证本地批量取令牌、拒绝窗口、归还和redis不可用时的放行
+ */
+class RedisRateLimiterTest {
+
+    private final Map<String, double[]> redisBuckets = new ConcurrentHashMap<>();
+    private final AtomicInteger redisCalls = new AtomicInteger();
+    private volatile boolean redisDown;
+    private RateLimitProperties properties;
+    private RedisRateLimiter limiter;
+
+    @BeforeEach
+    void setUp() {
+        properties = new RateLimitProperties();
+        properties.setFailOpen(Duration.ofMinutes(1));
+        limiter = new RedisRateLimiter(new FakeRedis(), properties);
+    }
+
+    @Test
+    void batchFetchServesLocally() {
+        rule("voucher", 2000, 2000, 50);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(limiter.tryAcquire("voucher", ""));
+        }
+        assertEquals(10, redisCalls.get());
+    }
+
+    @Test
+    void denyWithoutRedisUntilNextToken() {
+        rule("user", 0.001, 3, 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("user", "1"));
+        }
+        assertFalse(limiter.tryAcquire("user", "1"));
+        int calls = redisCalls.get();
+        for (int i = 0; i < 100; i++) {
+            assertFalse(limiter.tryAcquire("user", "1"));
+        }
+        assertEquals(calls, redisCalls.get());
+        // 不同的key是不同的令牌桶
+        assertTrue(limiter.tryAcquire("user", "2"));
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        rule("user", 1000, 5, 1);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire("user", "1"));
+        }
+        assertFalse(limiter.tryAcquire("user", "1"));
+        Thread.sleep(20);
+        assertTrue(limiter.tryAcquire("user", "1"));
+    }
+
+    @Test
+    void releaseRefundsPermit() {
+        rule("user", 0.001, 1, 1);
+        assertTrue(limiter.tryAcquire("user", "1"));
+        // 后面的规则拒绝, 归还之后下一个请求不用访问redis
+        limiter.release("user", "1");
+        int calls = redisCalls.get();
+        assertTrue(limiter.tryAcquire("user", "1"));
+        assertEquals(calls, redisCalls.get());
+        assertFalse(limiter.tryAcquire("user", "1"));
+    }
+
+    @Test
+    void failOpenWithoutRetryingRedis() {
+        rule("user", 0.001, 1, 1);
+        redisDown = true;
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire("user", String.valueOf(i)));
+        }
+        // 第一次失败后在failOpen时间内不再访问redis
+        assertEquals(1, redisCalls.get());
+    }
+
+    @Test
+    void unknownRuleOrDisabledPasses() {
+        assertTrue(limiter.tryAcquire("unknown", ""));
+        rule("user", 0.001, 1, 1);
+        properties.setEnabled(false);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("user", "1"));
+        }
+        assertEquals(0, redisCalls.get());
+    }
+
+    private void rule(String name, double rate, long capacity, int batch) {
+        RateLimitProperties.Rule rule = new RateLimitProperties.Rule();
+        rule.setRate(rate);
+        rule.setCapacity(capacity);
+        rule.setBatch(batch);
+        properties.getRules().put(name, rule);
+    }
+
+    /**
+     * 和rate_limit.lua相同的计算: 按经过的时间补充令牌, 取出不超过剩余整数个令牌
+     */
+    private class FakeRedis extends StringRedisTemplate {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            redisCalls.incrementAndGet();
+            if (redisDown) {
+                throw new RedisConnectionFailureException("redis is down");
+            }
+            double rate = Double.parseDouble((String) args[0]);
+            long capacity = Long.parseLong((String) args[1]);
+            long requested = Long.parseLong((String) args[2]);
+            long now = Long.parseLong((String) args[3]);
+            double[] bucket = redisBuckets.computeIfAbsent(keys.get(0), k -> new double[]{capacity, now});
+            synchronized (bucket) {
+                if (now > bucket[1]) {
+                    bucket[0] = Math.min(capacity, bucket[0] + (now - bucket[1]) * rate / 1000);
+                    bucket[1] = now;
+                }
+                long granted = Math.min(requested, (long) Math.floor(bucket[0]));
+                bucket[0] -= granted;
+                return (T) Long.valueOf(granted);
+            }
+        }
+    }
+}
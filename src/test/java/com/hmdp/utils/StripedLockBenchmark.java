@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 对比下单时的几种本地加锁方式, 获取redisson锁和数据库事务都用consumeCPU模拟
+ * 1. intern: 原来的 synchronized (userId.toString().intern()) 加上 synchronized 的 createVoucherOrder, 锁住整个事务
+ * 2. internTryLock: 和现在相同的形状, 只在获取redisson锁期间持有 userId.toString().intern() 的锁
+ * 3. striped: 现在VoucherOrderServiceImpl中的写法, 只在获取redisson锁期间持有StripedLock的分段, 事务在锁外执行
+ * 运行: 在IDE中执行main, 依次用1 ~ 64个线程测试; 这里不记录结果, 需要在目标机器上用JMH测
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StripedLockBenchmark {
+
+    /**
+     * 参与秒杀的用户数, 每次请求随机选一个用户
+     */
+    @Param({"1000", "1000000"})
+    private int users;
+
+    /**
+     * 获取redisson锁的工作量, 本地锁只在这段时间内持有
+     */
+    @Param({"10"})
+    private int lockTokens;
+
+    /**
+     * 数据库事务的工作量
+     */
+    @Param({"100"})
+    private int tokens;
+
+    private final StripedLock stripedLock = new StripedLock(1024);
+
+    @Benchmark
+    public void intern(Blackhole bh) {
+        Long userId = nextUser();
+        synchronized (userId.toString().intern()) {
+            createVoucherOrder(bh);
+        }
+    }
+
+    @Benchmark
+    public void internTryLock(Blackhole bh) {
+        Long userId = nextUser();
+        synchronized (userId.toString().intern()) {
+            tryLock(bh, userId);
+        }
+        transaction();
+    }
+
+    @Benchmark
+    public void striped(Blackhole bh) {
+        long userId = nextUser();
+        Lock lock = stripedLock.get(userId);
+        lock.lock();
+        try {
+            tryLock(bh, userId);
+        } finally {
+            lock.unlock();
+        }
+        transaction();
+    }
+
+    /**
+     * 原来的createVoucherOrder是单例bean上的synchronized方法
+     */
+    private synchronized void createVoucherOrder(Blackhole bh) {
+        bh.consume(this);
+        Blackhole.consumeCPU(lockTokens);
+        Blackhole.consumeCPU(tokens);
+    }
+
+    /**
+     * 模拟redisson的tryLock
+     */
+    private void tryLock(Blackhole bh, long userId) {
+        bh.consume(userId);
+        Blackhole.consumeCPU(lockTokens);
+    }
+
+    /**
+     * 模拟在锁外执行的数据库事务
+     */
+    private void transaction() {
+        Blackhole.consumeCPU(tokens);
+    }
+
+    private long nextUser() {
+        return ThreadLocalRandom.current().nextInt(users);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            Options options = new OptionsBuilder()
+                    .include(StripedLockBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}